@@ -0,0 +1,44 @@
+package com.castles.remote.core;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter, so that many devices losing their agent at the same time do not retry in lockstep.
+ * <p>
+ * The n-th delay is drawn uniformly between half and all of {@code min(maxDelay, initialDelay * 2^n)}.
+ */
+public final class Backoff {
+
+    private static final int MAX_EXPONENT = 16;
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+    private int attempts;
+
+    /**
+     * @param initialDelay the base delay of the first retry (in ms)
+     * @param maxDelay     the upper bound of the delays (in ms)
+     */
+    public Backoff(long initialDelay, long maxDelay) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @return the delay (in ms) to wait before the next attempt
+     */
+    public long next() {
+        long delay = Math.min(maxDelay, initialDelay << Math.min(attempts, MAX_EXPONENT));
+        ++attempts;
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    /**
+     * Restart from the initial delay, once an attempt has succeeded.
+     */
+    public void reset() {
+        attempts = 0;
+    }
+}
@@ -0,0 +1,147 @@
+package com.castles.remote.core;
+
+/**
+ * Congestion-aware bitrate controller, driven by the socket backpressure observed by the video writer.
+ * <p>
+ * Every {@link #WINDOW_NS}, the controller looks at:
+ * <ul>
+ * <li>the ratio of time spent blocked in socket writes (the kernel send buffer is full);</li>
+ * <li>the maximum depth of the packet queue waiting to be written;</li>
+ * <li>whether packets have been dropped.</li>
+ * </ul>
+ * The bitrate is decreased multiplicatively as soon as the link is congested, and increased additively after several
+ * consecutive clear windows (AIMD), between {@code minBitRate} and {@code maxBitRate}.
+ * <p>
+ * It is only accessed from the video writer thread, except the metrics getters.
+ */
+public final class BitrateController {
+
+    private static final long WINDOW_NS = 500_000_000L; // 500 ms
+
+    private static final float CONGESTED_STALL_RATIO = 0.5f;
+    private static final float CLEAR_STALL_RATIO = 0.1f;
+    private static final int CONGESTED_QUEUE_DEPTH = 3;
+    private static final int CLEAR_QUEUE_DEPTH = 1;
+    private static final int CLEAR_WINDOWS_BEFORE_INCREASE = 4;
+
+    private static final float DECREASE_FACTOR = 0.75f;
+    private static final float INCREASE_RATIO = 0.1f;
+
+    private final int minBitRate;
+    private final int maxBitRate;
+
+    private volatile int bitRate;
+
+    // current window
+    private long windowStartNs;
+    private long writeTimeNs;
+    private int maxQueueDepth;
+    private long droppedCountAtWindowStart;
+    private int clearWindows;
+
+    // metrics
+    private volatile float lastStallRatio;
+    private volatile int lastMaxQueueDepth;
+    private volatile int decreaseCount;
+    private volatile int increaseCount;
+
+    public BitrateController(int bitRate, int minBitRate, int maxBitRate) {
+        this.minBitRate = minBitRate;
+        this.maxBitRate = maxBitRate;
+        this.bitRate = clamp(bitRate);
+    }
+
+    /**
+     * Account a packet written to the socket.
+     *
+     * @param writeTimeNs  the time spent in the socket write
+     * @param queueDepth   the number of packets still waiting to be written
+     * @param droppedCount the total number of packets dropped so far
+     * @return the new bitrate to apply to the encoder, or 0 if it must not change
+     */
+    public int onPacketWritten(long writeTimeNs, int queueDepth, long droppedCount) {
+        long now = System.nanoTime();
+        if (windowStartNs == 0) {
+            startWindow(now, droppedCount);
+        }
+        this.writeTimeNs += writeTimeNs;
+        maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+
+        long elapsed = now - windowStartNs;
+        if (elapsed < WINDOW_NS) {
+            return 0;
+        }
+
+        float stallRatio = (float) this.writeTimeNs / elapsed;
+        boolean dropped = droppedCount != droppedCountAtWindowStart;
+        lastStallRatio = stallRatio;
+        lastMaxQueueDepth = maxQueueDepth;
+
+        int newBitRate = bitRate;
+        if (dropped || stallRatio > CONGESTED_STALL_RATIO || maxQueueDepth >= CONGESTED_QUEUE_DEPTH) {
+            clearWindows = 0;
+            newBitRate = clamp((int) (bitRate * DECREASE_FACTOR));
+        } else if (stallRatio < CLEAR_STALL_RATIO && maxQueueDepth <= CLEAR_QUEUE_DEPTH) {
+            if (++clearWindows >= CLEAR_WINDOWS_BEFORE_INCREASE) {
+                clearWindows = 0;
+                newBitRate = clamp(bitRate + (int) (bitRate * INCREASE_RATIO));
+            }
+        } else {
+            clearWindows = 0;
+        }
+
+        startWindow(now, droppedCount);
+
+        if (newBitRate == bitRate) {
+            return 0;
+        }
+        if (newBitRate < bitRate) {
+            ++decreaseCount;
+        } else {
+            ++increaseCount;
+        }
+        Ln.i("Bitrate " + bitRate + " -> " + newBitRate + " (stall ratio: " + stallRatio + ", queue depth: " + lastMaxQueueDepth
+                + (dropped ? ", dropped packets" : "") + ")");
+        bitRate = newBitRate;
+        return newBitRate;
+    }
+
+    private void startWindow(long now, long droppedCount) {
+        windowStartNs = now;
+        writeTimeNs = 0;
+        maxQueueDepth = 0;
+        droppedCountAtWindowStart = droppedCount;
+    }
+
+    private int clamp(int value) {
+        return Math.max(minBitRate, Math.min(maxBitRate, value));
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    public int getMinBitRate() {
+        return minBitRate;
+    }
+
+    public int getMaxBitRate() {
+        return maxBitRate;
+    }
+
+    public float getLastStallRatio() {
+        return lastStallRatio;
+    }
+
+    public int getLastMaxQueueDepth() {
+        return lastMaxQueueDepth;
+    }
+
+    public int getDecreaseCount() {
+        return decreaseCount;
+    }
+
+    public int getIncreaseCount() {
+        return increaseCount;
+    }
+}
@@ -1,7 +1,13 @@
 package com.castles.remote.core;
 
+import android.graphics.Rect;
+import android.view.MotionEvent;
+
 /**
  * Union of all supported event types, identified by their {@code type}.
+ * <p>
+ * The messages returned by {@link ControlMessageReader#next()} are a single mutable instance, overwritten by the next
+ * message: they must be handled before reading the next one.
  */
 public final class ControlMessage {
 
@@ -15,58 +21,107 @@ public final class ControlMessage {
     public static final int TYPE_GET_CLIPBOARD = 7;
     public static final int TYPE_SET_CLIPBOARD = 8;
     public static final int TYPE_SET_SCREEN_POWER_MODE = 9;
+    public static final int TYPE_REQUEST_KEY_FRAME = 10;
+    public static final int TYPE_SET_VIDEO_CONFIG = 11;
+    // part of a text too large for a single TYPE_INJECT_TEXT or TYPE_SET_CLIPBOARD message, never returned by the reader
+    public static final int TYPE_TEXT_CHUNK = 12;
+    public static final int TYPE_INJECT_TOUCH_EVENT = 13;
+    public static final int TYPE_INJECT_TOUCH_MOVE_BATCH = 14;
+
+    // max number of samples of a TYPE_INJECT_TOUCH_MOVE_BATCH message
+    public static final int MAX_BATCH_SAMPLES = 64;
+
+    // pointer id of the TYPE_INJECT_MOUSE_EVENT events, distinct from the ids of the touch pointers
+    public static final long POINTER_ID_MOUSE = -1;
+
+    // flags of a TYPE_SET_VIDEO_CONFIG message, indicating the values to change
+    public static final int VIDEO_CONFIG_MAX_SIZE = 1;
+    public static final int VIDEO_CONFIG_CROP = 2;
+
+    // flags of a TYPE_TEXT_CHUNK message
+    public static final int TEXT_CHUNK_LAST = 1;
 
     private int type;
-    private String text;
+    private CharSequence text;
     private int metaState; // KeyEvent.META_*
-    private int action; // KeyEvent.ACTION_* or MotionEvent.ACTION_* or POWER_MODE_*
+    private int action; // KeyEvent.ACTION_* or MotionEvent.ACTION_* or POWER_MODE_* or VIDEO_CONFIG_* flags
     private int keycode; // KeyEvent.KEYCODE_*
     private int buttons; // MotionEvent.BUTTON_*
-    private Position position;
+    private long pointerId;
+    private float pressure;
+    // samples of a TYPE_INJECT_TOUCH_MOVE_BATCH, allocated on the first batch then reused
+    private int sampleCount;
+    private int[] sampleTimes; // in milliseconds, relative to the first sample
+    private int[] sampleXs;
+    private int[] sampleYs;
+    private float[] samplePressures;
+    // position, relative to the video size known by the client
+    private int x;
+    private int y;
+    private int screenWidth;
+    private int screenHeight;
     private int hScroll;
     private int vScroll;
+    private int maxSize;
+    private Rect crop;
 
-    private ControlMessage() {
+    ControlMessage() {
+        // instances are either created by the factory methods, or reused by the ControlMessageReader
     }
 
     public static ControlMessage createInjectKeycode(int action, int keycode, int metaState) {
         ControlMessage event = new ControlMessage();
-        event.type = TYPE_INJECT_KEYCODE;
-        event.action = action;
-        event.keycode = keycode;
-        event.metaState = metaState;
+        event.setInjectKeycode(action, keycode, metaState);
         return event;
     }
 
     public static ControlMessage createInjectText(String text) {
         ControlMessage event = new ControlMessage();
-        event.type = TYPE_INJECT_TEXT;
-        event.text = text;
+        event.setText(TYPE_INJECT_TEXT, text);
         return event;
     }
 
     public static ControlMessage createInjectMouseEvent(int action, int buttons, Position position) {
         ControlMessage event = new ControlMessage();
-        event.type = TYPE_INJECT_MOUSE_EVENT;
-        event.action = action;
-        event.buttons = buttons;
-        event.position = position;
+        Point point = position.getPoint();
+        Size screenSize = position.getScreenSize();
+        event.setInjectMouseEvent(action, buttons, point.getX(), point.getY(), screenSize.getWidth(), screenSize.getHeight());
+        return event;
+    }
+
+    public static ControlMessage createInjectTouchEvent(int action, long pointerId, Position position, float pressure, int buttons) {
+        ControlMessage event = new ControlMessage();
+        Point point = position.getPoint();
+        Size screenSize = position.getScreenSize();
+        event.setInjectTouchEvent(action, pointerId, point.getX(), point.getY(), screenSize.getWidth(), screenSize.getHeight(), pressure,
+                buttons);
+        return event;
+    }
+
+    /**
+     * @param times the time of each sample in milliseconds, relative to the first one
+     */
+    public static ControlMessage createInjectTouchMoveBatch(long pointerId, Size screenSize, int[] times, Point[] points,
+            float[] pressures) {
+        ControlMessage event = new ControlMessage();
+        event.setInjectTouchMoveBatch(pointerId, screenSize.getWidth(), screenSize.getHeight(), points.length);
+        for (int i = 0; i < points.length; ++i) {
+            event.setSample(i, times[i], points[i].getX(), points[i].getY(), pressures[i]);
+        }
         return event;
     }
 
     public static ControlMessage createInjectScrollEvent(Position position, int hScroll, int vScroll) {
         ControlMessage event = new ControlMessage();
-        event.type = TYPE_INJECT_SCROLL_EVENT;
-        event.position = position;
-        event.hScroll = hScroll;
-        event.vScroll = vScroll;
+        Point point = position.getPoint();
+        Size screenSize = position.getScreenSize();
+        event.setInjectScrollEvent(point.getX(), point.getY(), screenSize.getWidth(), screenSize.getHeight(), hScroll, vScroll);
         return event;
     }
 
     public static ControlMessage createSetClipboard(String text) {
         ControlMessage event = new ControlMessage();
-        event.type = TYPE_SET_CLIPBOARD;
-        event.text = text;
+        event.setText(TYPE_SET_CLIPBOARD, text);
         return event;
     }
 
@@ -75,22 +130,120 @@ public final class ControlMessage {
      */
     public static ControlMessage createSetScreenPowerMode(int mode) {
         ControlMessage event = new ControlMessage();
-        event.type = TYPE_SET_SCREEN_POWER_MODE;
-        event.action = mode;
+        event.setScreenPowerMode(mode);
+        return event;
+    }
+
+    /**
+     * @param flags   a combination of {@code VIDEO_CONFIG_*} flags, indicating which values to change
+     * @param maxSize the new max size, 0 for no limit
+     * @param crop    the new crop, {@code null} for no crop
+     */
+    public static ControlMessage createSetVideoConfig(int flags, int maxSize, Rect crop) {
+        ControlMessage event = new ControlMessage();
+        event.setVideoConfig(flags, maxSize, crop);
         return event;
     }
 
     public static ControlMessage createEmpty(int type) {
         ControlMessage event = new ControlMessage();
-        event.type = type;
+        event.setEmpty(type);
         return event;
     }
 
+    // The setters below overwrite the message in place, so that the reader decodes every message without allocation.
+
+    void setInjectKeycode(int action, int keycode, int metaState) {
+        type = TYPE_INJECT_KEYCODE;
+        this.action = action;
+        this.keycode = keycode;
+        this.metaState = metaState;
+    }
+
+    void setText(int type, CharSequence text) {
+        this.type = type;
+        this.text = text;
+    }
+
+    void setInjectMouseEvent(int action, int buttons, int x, int y, int screenWidth, int screenHeight) {
+        type = TYPE_INJECT_MOUSE_EVENT;
+        this.action = action;
+        this.buttons = buttons;
+        setPosition(x, y, screenWidth, screenHeight);
+    }
+
+    void setInjectTouchEvent(int action, long pointerId, int x, int y, int screenWidth, int screenHeight, float pressure, int buttons) {
+        type = TYPE_INJECT_TOUCH_EVENT;
+        this.action = action;
+        this.pointerId = pointerId;
+        setPosition(x, y, screenWidth, screenHeight);
+        this.pressure = pressure;
+        this.buttons = buttons;
+    }
+
+    /**
+     * Start a batch, the samples must then be set by {@link #setSample(int, int, int, int, float)}.
+     */
+    void setInjectTouchMoveBatch(long pointerId, int screenWidth, int screenHeight, int sampleCount) {
+        if (sampleXs == null) {
+            sampleTimes = new int[MAX_BATCH_SAMPLES];
+            sampleXs = new int[MAX_BATCH_SAMPLES];
+            sampleYs = new int[MAX_BATCH_SAMPLES];
+            samplePressures = new float[MAX_BATCH_SAMPLES];
+        }
+        type = TYPE_INJECT_TOUCH_MOVE_BATCH;
+        action = MotionEvent.ACTION_MOVE;
+        this.pointerId = pointerId;
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+        this.sampleCount = sampleCount;
+    }
+
+    void setSample(int index, int time, int x, int y, float pressure) {
+        sampleTimes[index] = time;
+        sampleXs[index] = x;
+        sampleYs[index] = y;
+        samplePressures[index] = pressure;
+    }
+
+    void setInjectScrollEvent(int x, int y, int screenWidth, int screenHeight, int hScroll, int vScroll) {
+        type = TYPE_INJECT_SCROLL_EVENT;
+        setPosition(x, y, screenWidth, screenHeight);
+        this.hScroll = hScroll;
+        this.vScroll = vScroll;
+    }
+
+    void setScreenPowerMode(int mode) {
+        type = TYPE_SET_SCREEN_POWER_MODE;
+        action = mode;
+    }
+
+    void setVideoConfig(int flags, int maxSize, Rect crop) {
+        type = TYPE_SET_VIDEO_CONFIG;
+        action = flags;
+        this.maxSize = maxSize;
+        this.crop = crop;
+    }
+
+    void setEmpty(int type) {
+        this.type = type;
+    }
+
+    private void setPosition(int x, int y, int screenWidth, int screenHeight) {
+        this.x = x;
+        this.y = y;
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+    }
+
     public int getType() {
         return type;
     }
 
-    public String getText() {
+    /**
+     * @return the text, only valid until the next message is read (it may be backed by the reader buffer)
+     */
+    public CharSequence getText() {
         return text;
     }
 
@@ -110,8 +263,60 @@ public final class ControlMessage {
         return buttons;
     }
 
-    public Position getPosition() {
-        return position;
+    public long getPointerId() {
+        return pointerId;
+    }
+
+    /**
+     * @return the pressure, between 0 and 1
+     */
+    public float getPressure() {
+        return pressure;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return the time of the sample in milliseconds, relative to the first sample of the batch
+     */
+    public int getSampleTime(int index) {
+        return sampleTimes[index];
+    }
+
+    public int getSampleX(int index) {
+        return sampleXs[index];
+    }
+
+    public int getSampleY(int index) {
+        return sampleYs[index];
+    }
+
+    public float getSamplePressure(int index) {
+        return samplePressures[index];
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * @return the width of the video the position is relative to
+     */
+    public int getScreenWidth() {
+        return screenWidth;
+    }
+
+    /**
+     * @return the height of the video the position is relative to
+     */
+    public int getScreenHeight() {
+        return screenHeight;
     }
 
     public int getHScroll() {
@@ -121,4 +326,12 @@ public final class ControlMessage {
     public int getVScroll() {
         return vScroll;
     }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public Rect getCrop() {
+        return crop;
+    }
 }
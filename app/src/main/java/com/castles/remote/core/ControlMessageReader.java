@@ -1,25 +1,74 @@
 package com.castles.remote.core;
 
+import android.graphics.Rect;
+import android.view.MotionEvent;
+
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 
+/**
+ * Decode the control messages without allocation: {@link #next()} always returns the same message instance, and the
+ * text is decoded into a reused buffer.
+ * <p>
+ * A text larger than a single message is sent as a sequence of {@link ControlMessage#TYPE_TEXT_CHUNK} messages, which
+ * are accumulated until the last one, then returned as a single {@link ControlMessage#TYPE_INJECT_TEXT} or
+ * {@link ControlMessage#TYPE_SET_CLIPBOARD} message. Only these large transfers allocate.
+ */
 public class ControlMessageReader {
 
     private static final int INJECT_KEYCODE_PAYLOAD_LENGTH = 9;
     private static final int INJECT_MOUSE_EVENT_PAYLOAD_LENGTH = 17;
     private static final int INJECT_SCROLL_EVENT_PAYLOAD_LENGTH = 20;
+    private static final int INJECT_TOUCH_EVENT_PAYLOAD_LENGTH = 27;
+    // pointer id (8 bytes), screen size (4 bytes), sample count (1 byte)
+    private static final int INJECT_TOUCH_MOVE_BATCH_HEADER_LENGTH = 13;
+    // time (2 bytes), x (4 bytes), y (4 bytes), pressure (2 bytes)
+    private static final int TOUCH_SAMPLE_LENGTH = 12;
     private static final int SET_SCREEN_POWER_MODE_PAYLOAD_LENGTH = 1;
+    private static final int SET_VIDEO_CONFIG_PAYLOAD_LENGTH = 11;
+    // target type (1 byte), flags (1 byte), length (2 bytes)
+    private static final int TEXT_CHUNK_HEADER_LENGTH = 4;
 
     public static final int TEXT_MAX_LENGTH = 300;
     public static final int CLIPBOARD_TEXT_MAX_LENGTH = 4093;
+    // type (1 byte) + length (2 bytes) + text
+    public static final int MESSAGE_MAX_SIZE = 3 + CLIPBOARD_TEXT_MAX_LENGTH;
+    public static final int TEXT_CHUNK_MAX_LENGTH = MESSAGE_MAX_SIZE - 1 - TEXT_CHUNK_HEADER_LENGTH;
+    // larger clipboard contents would not fit in a binder transaction anyway
+    public static final int CHUNKED_TEXT_MAX_LENGTH = 1 << 20;
     private static final int RAW_BUFFER_SIZE = 1024;
 
-    private final byte[] rawBuffer = new byte[RAW_BUFFER_SIZE];
-    private final ByteBuffer buffer = ByteBuffer.wrap(rawBuffer);
+    // max number of buffered messages inspected by isMoveSuperseded()
+    private static final int MAX_LOOKAHEAD = 64;
+
+    private static final int CHUNK_INCOMPLETE = 0;
+    private static final int CHUNK_CONSUMED = 1;
+    private static final int CHUNK_COMPLETE = 2;
+
+    // grown up to MESSAGE_MAX_SIZE only when a message does not fit
+    private byte[] rawBuffer = new byte[RAW_BUFFER_SIZE];
+    private ByteBuffer buffer = ByteBuffer.wrap(rawBuffer);
     private final byte[] textBuffer = new byte[CLIPBOARD_TEXT_MAX_LENGTH];
+    private final ByteBuffer textBytes = ByteBuffer.wrap(textBuffer);
+    // a UTF-8 sequence never decodes to more chars than bytes
+    private final CharBuffer textChars = CharBuffer.allocate(CLIPBOARD_TEXT_MAX_LENGTH);
+    // same behavior as new String(bytes, UTF_8) on invalid input
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ControlMessage message = new ControlMessage();
+
+    // current chunked transfer, decoded only once complete (a chunk may split a UTF-8 sequence)
+    private byte[] chunkedBytes; // null if no transfer is in progress
+    private int chunkedLength;
+    private int chunkedType;
+    private boolean chunkedDiscarded;
 
     public ControlMessageReader() {
         // invariant: the buffer is always in "get" mode
@@ -32,7 +81,11 @@ public class ControlMessageReader {
 
     public void readFrom(InputStream input) throws IOException {
         if (isFull()) {
-            throw new IllegalStateException("Buffer full, call next() to consume");
+            if (rawBuffer.length == MESSAGE_MAX_SIZE) {
+                throw new IllegalStateException("Buffer full, call next() to consume");
+            }
+            // the pending message is larger than the buffer
+            grow();
         }
         buffer.compact();
         int head = buffer.position();
@@ -44,50 +97,154 @@ public class ControlMessageReader {
         buffer.flip();
     }
 
+    private void grow() {
+        byte[] newRawBuffer = new byte[Math.min(rawBuffer.length * 2, MESSAGE_MAX_SIZE)];
+        int position = buffer.position();
+        int limit = buffer.limit();
+        System.arraycopy(rawBuffer, 0, newRawBuffer, 0, limit);
+        rawBuffer = newRawBuffer;
+        buffer = ByteBuffer.wrap(newRawBuffer);
+        buffer.position(position);
+        buffer.limit(limit);
+    }
+
+    /**
+     * @return the next message (overwritten by the following call), or {@code null} if not fully received yet
+     */
     public ControlMessage next() {
-        if (!buffer.hasRemaining()) {
-            return null;
+        while (buffer.hasRemaining()) {
+            int savedPosition = buffer.position();
+            int type = buffer.get();
+            if (type != ControlMessage.TYPE_TEXT_CHUNK) {
+                ControlMessage msg = parse(type);
+                if (msg == null) {
+                    // failure, reset savedPosition
+                    buffer.position(savedPosition);
+                }
+                return msg;
+            }
+
+            int result = parseTextChunk();
+            if (result == CHUNK_INCOMPLETE) {
+                buffer.position(savedPosition);
+                return null;
+            }
+            if (result == CHUNK_COMPLETE) {
+                return message;
+            }
+            // the chunk is consumed, but the text is not complete yet: parse the following message
         }
-        int savedPosition = buffer.position();
+        return null;
+    }
 
-        int type = buffer.get();
-        ControlMessage msg;
+    /**
+     * Tell whether a move (returned by the last call to {@link #next()}) is stale: a later move of the same pointer is
+     * already buffered, separated from it only by moves of other pointers.
+     * <p>
+     * Skipping such a move neither reorders nor drops any down, up or key event. Only the data already buffered is
+     * inspected, without decoding it.
+     */
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public boolean isMoveSuperseded(ControlMessage msg) {
+        long pointerId;
+        switch (msg.getType()) {
+            case ControlMessage.TYPE_INJECT_MOUSE_EVENT:
+                if (msg.getAction() != MotionEvent.ACTION_MOVE) {
+                    return false;
+                }
+                pointerId = ControlMessage.POINTER_ID_MOUSE;
+                break;
+            case ControlMessage.TYPE_INJECT_TOUCH_EVENT:
+                if (msg.getAction() != MotionEvent.ACTION_MOVE) {
+                    return false;
+                }
+                pointerId = msg.getPointerId();
+                break;
+            case ControlMessage.TYPE_INJECT_TOUCH_MOVE_BATCH:
+                if (msg.getSampleCount() == 0) {
+                    return false;
+                }
+                pointerId = msg.getPointerId();
+                break;
+            default:
+                return false;
+        }
+
+        int pos = buffer.position();
+        int limit = buffer.limit();
+        for (int i = 0; i < MAX_LOOKAHEAD && pos < limit; ++i) {
+            int type = rawBuffer[pos];
+            long nextPointerId;
+            int length;
+            switch (type) {
+                case ControlMessage.TYPE_INJECT_MOUSE_EVENT:
+                    length = 1 + INJECT_MOUSE_EVENT_PAYLOAD_LENGTH;
+                    if (pos + length > limit || rawBuffer[pos + 1] != MotionEvent.ACTION_MOVE) {
+                        return false;
+                    }
+                    nextPointerId = ControlMessage.POINTER_ID_MOUSE;
+                    break;
+                case ControlMessage.TYPE_INJECT_TOUCH_EVENT:
+                    length = 1 + INJECT_TOUCH_EVENT_PAYLOAD_LENGTH;
+                    if (pos + length > limit || rawBuffer[pos + 1] != MotionEvent.ACTION_MOVE) {
+                        return false;
+                    }
+                    nextPointerId = buffer.getLong(pos + 2);
+                    break;
+                case ControlMessage.TYPE_INJECT_TOUCH_MOVE_BATCH:
+                    if (pos + 1 + INJECT_TOUCH_MOVE_BATCH_HEADER_LENGTH > limit) {
+                        return false;
+                    }
+                    int sampleCount = toUnsigned(rawBuffer[pos + INJECT_TOUCH_MOVE_BATCH_HEADER_LENGTH]);
+                    length = 1 + INJECT_TOUCH_MOVE_BATCH_HEADER_LENGTH + sampleCount * TOUCH_SAMPLE_LENGTH;
+                    if (pos + length > limit || sampleCount == 0 || sampleCount > ControlMessage.MAX_BATCH_SAMPLES) {
+                        return false;
+                    }
+                    nextPointerId = buffer.getLong(pos + 1);
+                    break;
+                default:
+                    // not a move (or not fully received)
+                    return false;
+            }
+            if (nextPointerId == pointerId) {
+                return true;
+            }
+            pos += length;
+        }
+        return false;
+    }
+
+    private ControlMessage parse(int type) {
         switch (type) {
             case ControlMessage.TYPE_INJECT_KEYCODE:
-                msg = parseInjectKeycode();
-                break;
+                return parseInjectKeycode();
             case ControlMessage.TYPE_INJECT_TEXT:
-                msg = parseInjectText();
-                break;
+                return parseInjectText();
             case ControlMessage.TYPE_INJECT_MOUSE_EVENT:
-                msg = parseInjectMouseEvent();
-                break;
+                return parseInjectMouseEvent();
             case ControlMessage.TYPE_INJECT_SCROLL_EVENT:
-                msg = parseInjectScrollEvent();
-                break;
+                return parseInjectScrollEvent();
+            case ControlMessage.TYPE_INJECT_TOUCH_EVENT:
+                return parseInjectTouchEvent();
+            case ControlMessage.TYPE_INJECT_TOUCH_MOVE_BATCH:
+                return parseInjectTouchMoveBatch();
             case ControlMessage.TYPE_SET_CLIPBOARD:
-                msg = parseSetClipboard();
-                break;
+                return parseSetClipboard();
             case ControlMessage.TYPE_SET_SCREEN_POWER_MODE:
-                msg = parseSetScreenPowerMode();
-                break;
+                return parseSetScreenPowerMode();
+            case ControlMessage.TYPE_SET_VIDEO_CONFIG:
+                return parseSetVideoConfig();
             case ControlMessage.TYPE_BACK_OR_SCREEN_ON:
             case ControlMessage.TYPE_EXPAND_NOTIFICATION_PANEL:
             case ControlMessage.TYPE_COLLAPSE_NOTIFICATION_PANEL:
             case ControlMessage.TYPE_GET_CLIPBOARD:
-                msg = ControlMessage.createEmpty(type);
-                break;
+            case ControlMessage.TYPE_REQUEST_KEY_FRAME:
+                message.setEmpty(type);
+                return message;
             default:
                 Ln.w("Unknown event type: " + type);
-                msg = null;
-                break;
+                return null;
         }
-
-        if (msg == null) {
-            // failure, reset savedPosition
-            buffer.position(savedPosition);
-        }
-        return msg;
     }
 
     private ControlMessage parseInjectKeycode() {
@@ -97,10 +254,14 @@ public class ControlMessageReader {
         int action = toUnsigned(buffer.get());
         int keycode = buffer.getInt();
         int metaState = buffer.getInt();
-        return ControlMessage.createInjectKeycode(action, keycode, metaState);
+        message.setInjectKeycode(action, keycode, metaState);
+        return message;
     }
 
-    private String parseString() {
+    /**
+     * Decode a string into the reused char buffer.
+     */
+    private CharSequence parseString() {
         if (buffer.remaining() < 2) {
             return null;
         }
@@ -109,15 +270,23 @@ public class ControlMessageReader {
             return null;
         }
         buffer.get(textBuffer, 0, len);
-        return new String(textBuffer, 0, len, StandardCharsets.UTF_8);
+        textBytes.clear();
+        textBytes.limit(len);
+        textChars.clear();
+        decoder.reset();
+        decoder.decode(textBytes, textChars, true);
+        decoder.flush(textChars);
+        textChars.flip();
+        return textChars;
     }
 
     private ControlMessage parseInjectText() {
-        String text = parseString();
+        CharSequence text = parseString();
         if (text == null) {
             return null;
         }
-        return ControlMessage.createInjectText(text);
+        message.setText(ControlMessage.TYPE_INJECT_TEXT, text);
+        return message;
     }
 
     private ControlMessage parseInjectMouseEvent() {
@@ -126,26 +295,85 @@ public class ControlMessageReader {
         }
         int action = toUnsigned(buffer.get());
         int buttons = buffer.getInt();
-        Position position = readPosition(buffer);
-        return ControlMessage.createInjectMouseEvent(action, buttons, position);
+        int x = buffer.getInt();
+        int y = buffer.getInt();
+        int screenWidth = toUnsigned(buffer.getShort());
+        int screenHeight = toUnsigned(buffer.getShort());
+        message.setInjectMouseEvent(action, buttons, x, y, screenWidth, screenHeight);
+        return message;
+    }
+
+    private ControlMessage parseInjectTouchEvent() {
+        if (buffer.remaining() < INJECT_TOUCH_EVENT_PAYLOAD_LENGTH) {
+            return null;
+        }
+        int action = toUnsigned(buffer.get());
+        long pointerId = buffer.getLong();
+        int x = buffer.getInt();
+        int y = buffer.getInt();
+        int screenWidth = toUnsigned(buffer.getShort());
+        int screenHeight = toUnsigned(buffer.getShort());
+        float pressure = parsePressure();
+        int buttons = buffer.getInt();
+        message.setInjectTouchEvent(action, pointerId, x, y, screenWidth, screenHeight, pressure, buttons);
+        return message;
+    }
+
+    private ControlMessage parseInjectTouchMoveBatch() {
+        if (buffer.remaining() < INJECT_TOUCH_MOVE_BATCH_HEADER_LENGTH) {
+            return null;
+        }
+        long pointerId = buffer.getLong();
+        int screenWidth = toUnsigned(buffer.getShort());
+        int screenHeight = toUnsigned(buffer.getShort());
+        int sampleCount = toUnsigned(buffer.get());
+        if (buffer.remaining() < sampleCount * TOUCH_SAMPLE_LENGTH) {
+            return null;
+        }
+        if (sampleCount == 0 || sampleCount > ControlMessage.MAX_BATCH_SAMPLES) {
+            Ln.w("Invalid touch batch size: " + sampleCount + ", ignored");
+            buffer.position(buffer.position() + sampleCount * TOUCH_SAMPLE_LENGTH);
+            message.setInjectTouchMoveBatch(pointerId, screenWidth, screenHeight, 0);
+            return message;
+        }
+        message.setInjectTouchMoveBatch(pointerId, screenWidth, screenHeight, sampleCount);
+        for (int i = 0; i < sampleCount; ++i) {
+            int time = toUnsigned(buffer.getShort());
+            int x = buffer.getInt();
+            int y = buffer.getInt();
+            float pressure = parsePressure();
+            message.setSample(i, time, x, y, pressure);
+        }
+        return message;
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private float parsePressure() {
+        // 16-bit fixed point, 0xffff is 1.0
+        return toUnsigned(buffer.getShort()) / (float) 0xffff;
     }
 
     private ControlMessage parseInjectScrollEvent() {
         if (buffer.remaining() < INJECT_SCROLL_EVENT_PAYLOAD_LENGTH) {
             return null;
         }
-        Position position = readPosition(buffer);
+        int x = buffer.getInt();
+        int y = buffer.getInt();
+        int screenWidth = toUnsigned(buffer.getShort());
+        int screenHeight = toUnsigned(buffer.getShort());
         int hScroll = buffer.getInt();
         int vScroll = buffer.getInt();
-        return ControlMessage.createInjectScrollEvent(position, hScroll, vScroll);
+        message.setInjectScrollEvent(x, y, screenWidth, screenHeight, hScroll, vScroll);
+        return message;
     }
 
     private ControlMessage parseSetClipboard() {
-        String text = parseString();
+        CharSequence text = parseString();
         if (text == null) {
             return null;
         }
-        return ControlMessage.createSetClipboard(text);
+        message.setText(ControlMessage.TYPE_SET_CLIPBOARD, text);
+        return message;
     }
 
     private ControlMessage parseSetScreenPowerMode() {
@@ -153,15 +381,98 @@ public class ControlMessageReader {
             return null;
         }
         int mode = buffer.get();
-        return ControlMessage.createSetScreenPowerMode(mode);
+        message.setScreenPowerMode(mode);
+        return message;
     }
 
-    private static Position readPosition(ByteBuffer buffer) {
-        int x = buffer.getInt();
-        int y = buffer.getInt();
-        int screenWidth = toUnsigned(buffer.getShort());
-        int screenHeight = toUnsigned(buffer.getShort());
-        return new Position(x, y, screenWidth, screenHeight);
+    private ControlMessage parseSetVideoConfig() {
+        if (buffer.remaining() < SET_VIDEO_CONFIG_PAYLOAD_LENGTH) {
+            return null;
+        }
+        int flags = toUnsigned(buffer.get());
+        // multiple of 8
+        int maxSize = toUnsigned(buffer.getShort()) & ~7;
+        int width = toUnsigned(buffer.getShort());
+        int height = toUnsigned(buffer.getShort());
+        int x = toUnsigned(buffer.getShort());
+        int y = toUnsigned(buffer.getShort());
+        // an empty crop means no crop
+        Rect crop = width != 0 && height != 0 ? new Rect(x, y, x + width, y + height) : null;
+        message.setVideoConfig(flags, maxSize, crop);
+        return message;
+    }
+
+    /**
+     * Append a chunk to the current transfer.
+     *
+     * @return {@link #CHUNK_COMPLETE} if it was the last chunk (the message is then set), {@link #CHUNK_CONSUMED} if
+     * more chunks are expected, or {@link #CHUNK_INCOMPLETE} if the chunk is not fully received yet
+     */
+    private int parseTextChunk() {
+        if (buffer.remaining() < TEXT_CHUNK_HEADER_LENGTH) {
+            return CHUNK_INCOMPLETE;
+        }
+        int targetType = toUnsigned(buffer.get());
+        int flags = toUnsigned(buffer.get());
+        int len = toUnsigned(buffer.getShort());
+        if (buffer.remaining() < len) {
+            return CHUNK_INCOMPLETE;
+        }
+
+        if (targetType != ControlMessage.TYPE_INJECT_TEXT && targetType != ControlMessage.TYPE_SET_CLIPBOARD) {
+            Ln.w("Unexpected text chunk type: " + targetType);
+            buffer.position(buffer.position() + len);
+            return CHUNK_CONSUMED;
+        }
+
+        if (chunkedBytes != null && chunkedType != targetType) {
+            Ln.w("Incomplete chunked text discarded");
+            resetChunkedText();
+        }
+        if (chunkedBytes == null) {
+            chunkedBytes = new byte[Math.max(len, CLIPBOARD_TEXT_MAX_LENGTH)];
+            chunkedType = targetType;
+        }
+
+        if (chunkedDiscarded) {
+            buffer.position(buffer.position() + len);
+        } else if (chunkedLength + len > CHUNKED_TEXT_MAX_LENGTH) {
+            Ln.w("Chunked text too large (more than " + CHUNKED_TEXT_MAX_LENGTH + " bytes), discarded");
+            chunkedDiscarded = true;
+            buffer.position(buffer.position() + len);
+        } else {
+            ensureChunkedCapacity(chunkedLength + len);
+            buffer.get(chunkedBytes, chunkedLength, len);
+            chunkedLength += len;
+        }
+
+        if ((flags & ControlMessage.TEXT_CHUNK_LAST) == 0) {
+            return CHUNK_CONSUMED;
+        }
+
+        boolean discarded = chunkedDiscarded;
+        if (!discarded) {
+            // a large transfer is rare, decode it to a new string rather than keeping huge buffers around
+            String text = new String(chunkedBytes, 0, chunkedLength, StandardCharsets.UTF_8);
+            message.setText(chunkedType, text);
+        }
+        resetChunkedText();
+        return discarded ? CHUNK_CONSUMED : CHUNK_COMPLETE;
+    }
+
+    private void ensureChunkedCapacity(int capacity) {
+        if (capacity > chunkedBytes.length) {
+            int newCapacity = Math.min(Math.max(chunkedBytes.length * 2, capacity), CHUNKED_TEXT_MAX_LENGTH);
+            byte[] newChunkedBytes = new byte[newCapacity];
+            System.arraycopy(chunkedBytes, 0, newChunkedBytes, 0, chunkedLength);
+            chunkedBytes = newChunkedBytes;
+        }
+    }
+
+    private void resetChunkedText() {
+        chunkedBytes = null;
+        chunkedLength = 0;
+        chunkedDiscarded = false;
     }
 
     @SuppressWarnings("checkstyle:MagicNumber")
@@ -2,6 +2,7 @@ package com.castles.remote.core;
 
 import com.castles.remote.core.wrappers.InputManager;
 
+import android.graphics.Rect;
 import android.os.SystemClock;
 import android.view.InputDevice;
 import android.view.InputEvent;
@@ -15,44 +16,42 @@ public class Controller {
 
     private final Device device;
     private final DesktopConnection connection;
+    private final ScreenEncoder screenEncoder; // null in snapshot mode
     private final DeviceMessageSender sender;
 
     private final KeyCharacterMap charMap = KeyCharacterMap.load(KeyCharacterMap.VIRTUAL_KEYBOARD);
 
-    private long lastMouseDown;
-    private final MotionEvent.PointerProperties[] pointerProperties = {new MotionEvent.PointerProperties()};
-    private final MotionEvent.PointerCoords[] pointerCoords = {new MotionEvent.PointerCoords()};
+    private long lastTouchDown;
+    private final PointersState pointersState = new PointersState();
+    private final MotionEvent.PointerProperties[] pointerProperties = new MotionEvent.PointerProperties[PointersState.MAX_POINTERS];
+    private final MotionEvent.PointerCoords[] pointerCoords = new MotionEvent.PointerCoords[PointersState.MAX_POINTERS];
+    // reused on every event, to avoid allocations while dragging
+    private final int[] physicalPoint = new int[2];
+    private final char[] singleChar = new char[1];
 
     private boolean stop = false;
 
-    public Controller(Device device, DesktopConnection connection) {
+    // forward the video size changes (on rotation or video config change) to the client
+    private final Device.ScreenInfoListener screenInfoListener = new Device.ScreenInfoListener() {
+        @Override
+        public void onScreenInfoChanged(ScreenInfo screenInfo) {
+            sender.pushVideoSize(screenInfo.getVideoSize());
+        }
+    };
+
+    public Controller(Device device, DesktopConnection connection, ScreenEncoder screenEncoder) {
         this.device = device;
         this.connection = connection;
-        initPointer();
+        this.screenEncoder = screenEncoder;
+        initPointers();
         sender = new DeviceMessageSender(connection);
     }
 
-    private void initPointer() {
-        MotionEvent.PointerProperties props = pointerProperties[0];
-        props.id = 0;
-        props.toolType = MotionEvent.TOOL_TYPE_FINGER;
-
-        MotionEvent.PointerCoords coords = pointerCoords[0];
-        coords.orientation = 0;
-        coords.pressure = 1;
-        coords.size = 1;
-    }
-
-    private void setPointerCoords(Point point) {
-        MotionEvent.PointerCoords coords = pointerCoords[0];
-        coords.x = point.getX();
-        coords.y = point.getY();
-    }
-
-    private void setScroll(int hScroll, int vScroll) {
-        MotionEvent.PointerCoords coords = pointerCoords[0];
-        coords.setAxisValue(MotionEvent.AXIS_HSCROLL, hScroll);
-        coords.setAxisValue(MotionEvent.AXIS_VSCROLL, vScroll);
+    private void initPointers() {
+        for (int i = 0; i < PointersState.MAX_POINTERS; ++i) {
+            pointerProperties[i] = new MotionEvent.PointerProperties();
+            pointerCoords[i] = new MotionEvent.PointerCoords();
+        }
     }
 
     /**
@@ -77,9 +76,15 @@ public class Controller {
             SystemClock.sleep(500);
         }
 
-        while (!stop) {
-            // 这里会进入死循环，不断的获取展示端发送来的事件
-            handleEvent();
+        device.addScreenInfoListener(screenInfoListener);
+        try {
+            while (!stop) {
+                // 这里会进入死循环，不断的获取展示端发送来的事件
+                handleEvent();
+            }
+        } finally {
+            device.removeScreenInfoListener(screenInfoListener);
+            Ln.d("Stale move events coalesced: " + connection.getCoalescedMoveCount());
         }
         Ln.d("control thread exit!!!!!!!");
     }
@@ -94,6 +99,9 @@ public class Controller {
 
     private void handleEvent() throws IOException {
         ControlMessage msg = connection.receiveControlMessage();
+        if (screenEncoder != null && isInputEvent(msg.getType())) {
+            screenEncoder.onInputEvent();
+        }
         switch (msg.getType()) {
             case ControlMessage.TYPE_INJECT_KEYCODE:
                 injectKeycode(msg.getAction(), msg.getKeycode(), msg.getMetaState());
@@ -102,10 +110,18 @@ public class Controller {
                 injectText(msg.getText());
                 break;
             case ControlMessage.TYPE_INJECT_MOUSE_EVENT:
-                injectMouse(msg.getAction(), msg.getButtons(), msg.getPosition());
+                injectTouch(msg.getAction(), ControlMessage.POINTER_ID_MOUSE, msg.getX(), msg.getY(), msg.getScreenWidth(),
+                        msg.getScreenHeight(), 1f, msg.getButtons());
+                break;
+            case ControlMessage.TYPE_INJECT_TOUCH_EVENT:
+                injectTouch(msg.getAction(), msg.getPointerId(), msg.getX(), msg.getY(), msg.getScreenWidth(), msg.getScreenHeight(),
+                        msg.getPressure(), msg.getButtons());
+                break;
+            case ControlMessage.TYPE_INJECT_TOUCH_MOVE_BATCH:
+                injectTouchMoveBatch(msg);
                 break;
             case ControlMessage.TYPE_INJECT_SCROLL_EVENT:
-                injectScroll(msg.getPosition(), msg.getHScroll(), msg.getVScroll());
+                injectScroll(msg.getX(), msg.getY(), msg.getScreenWidth(), msg.getScreenHeight(), msg.getHScroll(), msg.getVScroll());
                 break;
             case ControlMessage.TYPE_BACK_OR_SCREEN_ON:
                 pressBackOrTurnScreenOn();
@@ -121,23 +137,52 @@ public class Controller {
                 sender.pushClipboardText(clipboardText);
                 break;
             case ControlMessage.TYPE_SET_CLIPBOARD:
-                device.setClipboardText(msg.getText());
+                device.setClipboardText(msg.getText().toString());
                 break;
             case ControlMessage.TYPE_SET_SCREEN_POWER_MODE:
                 device.setScreenPowerMode(msg.getAction());
                 break;
+            case ControlMessage.TYPE_REQUEST_KEY_FRAME:
+                if (screenEncoder != null) {
+                    screenEncoder.requestKeyFrame();
+                }
+                break;
+            case ControlMessage.TYPE_SET_VIDEO_CONFIG:
+                setVideoConfig(msg.getAction(), msg.getMaxSize(), msg.getCrop());
+                break;
             default:
                 // do nothing
         }
     }
 
+    private static boolean isInputEvent(int type) {
+        switch (type) {
+            case ControlMessage.TYPE_INJECT_KEYCODE:
+            case ControlMessage.TYPE_INJECT_TEXT:
+            case ControlMessage.TYPE_INJECT_MOUSE_EVENT:
+            case ControlMessage.TYPE_INJECT_SCROLL_EVENT:
+            case ControlMessage.TYPE_INJECT_TOUCH_EVENT:
+            case ControlMessage.TYPE_INJECT_TOUCH_MOVE_BATCH:
+            case ControlMessage.TYPE_BACK_OR_SCREEN_ON:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     private boolean injectKeycode(int action, int keycode, int metaState) {
         return injectKeyEvent(action, keycode, 0, metaState);
     }
 
     private boolean injectChar(char c) {
         String decomposed = KeyComposition.decompose(c);
-        char[] chars = decomposed != null ? decomposed.toCharArray() : new char[]{c};
+        char[] chars;
+        if (decomposed != null) {
+            chars = decomposed.toCharArray();
+        } else {
+            singleChar[0] = c;
+            chars = singleChar;
+        }
         KeyEvent[] events = charMap.getEvents(chars);
         if (events == null) {
             return false;
@@ -150,9 +195,10 @@ public class Controller {
         return true;
     }
 
-    private int injectText(String text) {
+    private int injectText(CharSequence text) {
         int successCount = 0;
-        for (char c : text.toCharArray()) {
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
             if (!injectChar(c)) {
                 Ln.w("Could not inject char u+" + String.format("%04x", (int) c));
                 continue;
@@ -162,34 +208,163 @@ public class Controller {
         return successCount;
     }
 
-    private boolean injectMouse(int action, int buttons, Position position) {
+    private boolean injectTouch(int action, long pointerId, int x, int y, int screenWidth, int screenHeight, float pressure, int buttons) {
         long now = SystemClock.uptimeMillis();
-        if (action == MotionEvent.ACTION_DOWN) {
-            lastMouseDown = now;
-        }
-        Point point = device.getPhysicalPoint(position);
-        if (point == null) {
+        if (!device.getPhysicalPoint(x, y, screenWidth, screenHeight, physicalPoint)) {
             // ignore event
             return false;
         }
-        setPointerCoords(point);
-        MotionEvent event = MotionEvent.obtain(lastMouseDown, now, action, 1, pointerProperties, pointerCoords, 0, buttons, 1f, 1f, 0, 0,
-                InputDevice.SOURCE_TOUCHSCREEN, 0);
-        return injectEvent(event);
+
+        // only a DOWN adds a pointer, a move or an up of an unknown pointer is ignored, except a mouse hover
+        int pointerIndex = pointersState.getPointerIndex(pointerId, action == MotionEvent.ACTION_DOWN);
+        if (pointerIndex == -1) {
+            if (action == MotionEvent.ACTION_DOWN) {
+                Ln.w("Too many pointers for touch event");
+            } else if (action == MotionEvent.ACTION_MOVE && pointerId == ControlMessage.POINTER_ID_MOUSE) {
+                // the mouse moves with no button pressed
+                return injectHover(now, buttons);
+            }
+            return false;
+        }
+        PointersState.Pointer pointer = pointersState.get(pointerIndex);
+        pointer.set(physicalPoint[0], physicalPoint[1], pressure, action == MotionEvent.ACTION_UP);
+
+        int pointerCount = pointersState.update(pointerProperties, pointerCoords);
+        if (pointerCount == 1) {
+            if (action == MotionEvent.ACTION_DOWN) {
+                lastTouchDown = now;
+            }
+        } else {
+            // secondary pointers must use ACTION_POINTER_* with their index
+            if (action == MotionEvent.ACTION_UP) {
+                action = MotionEvent.ACTION_POINTER_UP | (pointerIndex << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+            } else if (action == MotionEvent.ACTION_DOWN) {
+                action = MotionEvent.ACTION_POINTER_DOWN | (pointerIndex << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+            }
+        }
+
+        MotionEvent event = MotionEvent.obtain(lastTouchDown, now, action, pointerCount, pointerProperties, pointerCoords, 0, buttons, 1f,
+                1f, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+        return injectMotionEvent(event);
     }
 
-    private boolean injectScroll(Position position, int hScroll, int vScroll) {
+    /**
+     * Inject all the samples of the batch as a single ACTION_MOVE event: the last sample is the current position, the
+     * others are historical samples. This costs one injection (a single binder call) instead of one per sample.
+     */
+    private boolean injectTouchMoveBatch(ControlMessage msg) {
+        int sampleCount = msg.getSampleCount();
+        if (sampleCount == 0) {
+            return false;
+        }
+        int pointerIndex = pointersState.getPointerIndex(msg.getPointerId(), false);
+        if (pointerIndex == -1) {
+            // the pointer is not down
+            return false;
+        }
+        PointersState.Pointer pointer = pointersState.get(pointerIndex);
+
+        // the last sample is now, the client timestamps only give the intervals
         long now = SystemClock.uptimeMillis();
-        Point point = device.getPhysicalPoint(position);
-        if (point == null) {
+        int lastTime = msg.getSampleTime(sampleCount - 1);
+        long previousEventTime = lastTouchDown;
+
+        MotionEvent event = null;
+        try {
+            for (int i = 0; i < sampleCount; ++i) {
+                if (!device.getPhysicalPoint(msg.getSampleX(i), msg.getSampleY(i), msg.getScreenWidth(), msg.getScreenHeight(),
+                        physicalPoint)) {
+                    // ignore sample
+                    continue;
+                }
+                long eventTime = getSampleEventTime(now, lastTime, msg.getSampleTime(i), previousEventTime);
+                previousEventTime = eventTime;
+
+                pointer.set(physicalPoint[0], physicalPoint[1], msg.getSamplePressure(i), false);
+                int pointerCount = pointersState.update(pointerProperties, pointerCoords);
+                if (event == null) {
+                    event = MotionEvent.obtain(lastTouchDown, eventTime, MotionEvent.ACTION_MOVE, pointerCount, pointerProperties,
+                            pointerCoords, 0, 0, 1f, 1f, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+                } else {
+                    event.addBatch(eventTime, pointerCoords, 0);
+                }
+            }
+            return event != null && injectEvent(event);
+        } finally {
+            if (event != null) {
+                event.recycle();
+            }
+        }
+    }
+
+    /**
+     * Map the client time of a sample of a batch to the uptime, the last sample being now.
+     * <p>
+     * The samples must be in chronological order, and not in the future: a sample is never before the previous one nor
+     * after now, even if the client timestamps are not monotonic.
+     *
+     * @param lastSampleTime    the client time of the last sample of the batch (ms)
+     * @param sampleTime        the client time of the sample (ms)
+     * @param previousEventTime the uptime of the previous sample, not after now
+     */
+    static long getSampleEventTime(long now, int lastSampleTime, int sampleTime, long previousEventTime) {
+        long eventTime = Math.min(now - (lastSampleTime - sampleTime), now);
+        return Math.max(eventTime, previousEventTime);
+    }
+
+    private boolean injectScroll(int x, int y, int screenWidth, int screenHeight, int hScroll, int vScroll) {
+        long now = SystemClock.uptimeMillis();
+        if (!device.getPhysicalPoint(x, y, screenWidth, screenHeight, physicalPoint)) {
             // ignore event
             return false;
         }
-        setPointerCoords(point);
-        setScroll(hScroll, vScroll);
-        MotionEvent event = MotionEvent.obtain(lastMouseDown, now, MotionEvent.ACTION_SCROLL, 1, pointerProperties, pointerCoords, 0, 0, 1f, 1f, 0,
-                0, InputDevice.SOURCE_MOUSE, 0);
-        return injectEvent(event);
+        MotionEvent.PointerCoords coords = setSinglePointer(MotionEvent.TOOL_TYPE_FINGER, 1);
+        coords.setAxisValue(MotionEvent.AXIS_HSCROLL, hScroll);
+        coords.setAxisValue(MotionEvent.AXIS_VSCROLL, vScroll);
+        MotionEvent event = MotionEvent.obtain(lastTouchDown, now, MotionEvent.ACTION_SCROLL, 1, pointerProperties, pointerCoords, 0, 0, 1f,
+                1f, 0, 0, InputDevice.SOURCE_MOUSE, 0);
+        return injectMotionEvent(event);
+    }
+
+    /**
+     * Inject a mouse move with no button pressed, at the position in {@link #physicalPoint}.
+     */
+    private boolean injectHover(long now, int buttons) {
+        setSinglePointer(MotionEvent.TOOL_TYPE_MOUSE, 0);
+        MotionEvent event = MotionEvent.obtain(now, now, MotionEvent.ACTION_HOVER_MOVE, 1, pointerProperties, pointerCoords, 0, buttons,
+                1f, 1f, 0, 0, InputDevice.SOURCE_MOUSE, 0);
+        return injectMotionEvent(event);
+    }
+
+    /**
+     * Set a single pointer at the position in {@link #physicalPoint}, independent of the pointers state.
+     *
+     * @return the coords of the pointer, to set additional axes
+     */
+    private MotionEvent.PointerCoords setSinglePointer(int toolType, float pressure) {
+        MotionEvent.PointerProperties props = pointerProperties[0];
+        props.id = 0;
+        props.toolType = toolType;
+        MotionEvent.PointerCoords coords = pointerCoords[0];
+        coords.clear();
+        coords.x = physicalPoint[0];
+        coords.y = physicalPoint[1];
+        coords.pressure = pressure;
+        coords.size = 1;
+        return coords;
+    }
+
+    /**
+     * Inject then recycle the event, so that the next {@link MotionEvent#obtain} reuses it instead of allocating.
+     * <p>
+     * The event is copied (parceled) by the injection call, even in async mode.
+     */
+    private boolean injectMotionEvent(MotionEvent event) {
+        try {
+            return injectEvent(event);
+        } finally {
+            event.recycle();
+        }
     }
 
     private boolean injectKeyEvent(int action, int keyCode, int repeat, int metaState) {
@@ -208,6 +383,13 @@ public class Controller {
         return device.injectInputEvent(event, InputManager.INJECT_INPUT_EVENT_MODE_ASYNC);
     }
 
+    private void setVideoConfig(int flags, int maxSize, Rect crop) {
+        Rect newCrop = (flags & ControlMessage.VIDEO_CONFIG_CROP) != 0 ? crop : device.getCrop();
+        int newMaxSize = (flags & ControlMessage.VIDEO_CONFIG_MAX_SIZE) != 0 ? maxSize : device.getMaxSize();
+        // the encoder is reconfigured asynchronously, then the client is notified of the new video size
+        device.setVideoConfig(newCrop, newMaxSize);
+    }
+
     private boolean pressBackOrTurnScreenOn() {
         int keycode = device.isScreenOn() ? KeyEvent.KEYCODE_BACK : KeyEvent.KEYCODE_POWER;
         return injectKeycode(keycode);
@@ -6,38 +6,69 @@ import android.net.LocalSocketAddress;
 import com.castles.remote.RemoteService;
 
 import java.io.Closeable;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.InetAddress;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 
 public final class DesktopConnection implements Closeable {
 
     private static final int DEVICE_NAME_FIELD_LENGTH = 64;
 
+    // socket type sent in the connection header
+    private static final byte SOCKET_TYPE_VIDEO = 1;
+    private static final byte SOCKET_TYPE_CONTROL = 2;
+    private static final byte SOCKET_TYPE_MULTIPLEXED = 3;
+
     private final Socket videoSocket;
-    private final Socket controlSocket;
+    private final Socket controlSocket; // null if multiplexed
+    // carries the video and the control channels over the video socket, null for separate sockets
+    private final Multiplexer multiplexer;
+    // the video transport if RTP is enabled, null to send the video on the video socket
+    private RtpSender rtpSender;
     private final InputStream controlInputStream;
     private final OutputStream controlOutputStream;
-    private final OutputStream videoOutputStream;
+    // the socket channel if the video socket has been opened from a channel (gathering writes), null otherwise
+    private final SocketChannel videoChannel;
+    private final WritableByteChannel videoOutputChannel;
+    private final ByteBuffer[] videoBuffers = new ByteBuffer[2];
     private final ControlMessageReader reader = new ControlMessageReader();
+    // number of stale moves skipped by receiveControlMessage()
+    private long coalescedMoveCount;
     private final DeviceMessageWriter writer = new DeviceMessageWriter();
 
     private DesktopConnection(Socket videoSocket, Socket controlSocket, byte[] buffer) throws IOException {
         this.videoSocket = videoSocket;
         this.controlSocket = controlSocket;
-        controlInputStream = controlSocket.getInputStream();
-        controlOutputStream = controlSocket.getOutputStream();
-        videoOutputStream = videoSocket.getOutputStream();
+        videoChannel = videoSocket.getChannel();
+        // wrap the stream only once, not on every write
+        videoOutputChannel = videoChannel != null ? videoChannel : Channels.newChannel(videoSocket.getOutputStream());
 
         buffer[0] = 0;
-        buffer[1] = 1;
-        IO.writeStreamFully(videoOutputStream, buffer, 0, 15);
-        buffer[1] = 2;
-        IO.writeStreamFully(controlOutputStream, buffer, 0, 15);
+        if (controlSocket == null) {
+            multiplexer = new Multiplexer(videoSocket);
+            controlInputStream = multiplexer.getControlInputStream();
+            controlOutputStream = multiplexer.getControlOutputStream();
+            // the connection header and the session header are sent before the framing starts
+            buffer[1] = SOCKET_TYPE_MULTIPLEXED;
+            IO.writeFully(videoOutputChannel, ByteBuffer.wrap(buffer, 0, 15));
+        } else {
+            multiplexer = null;
+            controlInputStream = controlSocket.getInputStream();
+            controlOutputStream = controlSocket.getOutputStream();
+            buffer[1] = SOCKET_TYPE_VIDEO;
+            IO.writeFully(videoOutputChannel, ByteBuffer.wrap(buffer, 0, 15));
+            buffer[1] = SOCKET_TYPE_CONTROL;
+            IO.writeStreamFully(controlOutputStream, buffer, 0, 15);
+        }
     }
 
     private static LocalSocket connect(String abstractName) throws IOException {
@@ -50,19 +81,37 @@ public final class DesktopConnection implements Closeable {
         return new Socket(host, port);
     }
 
+    /**
+     * Open a socket backed by a {@link SocketChannel}, so that it supports gathering writes.
+     * <p>
+     * Only use it for a socket which is never read and written concurrently: the streams of a channel socket share
+     * the same lock for reading and writing.
+     */
+    private static Socket connectChannel(String host, int port) throws IOException {
+        return SocketChannel.open(new InetSocketAddress(host, port)).socket();
+    }
+
     /**
      * 4.根据tunnelForward参数进行发送端和接收端的服务进行连接
      *
      * @param device
      * @param tunnelForward
      * @param host
+     * @param videoCodec the negotiated codec, or {@code null} if the client did not announce its codecs (it is then not
+     *                   sent in the session header)
+     * @param multiplexed whether the video and the control messages are carried over a single socket
+     * @param sessionToken the token of the stream session, or 0 if session resumption is disabled (it is then not sent in
+     *                     the session header)
      * @return
      * @throws IOException
      */
-    public static DesktopConnection open(int port, Device device, boolean tunnelForward,String ip, String host, byte[] buffer) throws IOException {
+    public static DesktopConnection open(int port, Device device, boolean tunnelForward, String ip, String host, byte[] buffer,
+                                         VideoCodec videoCodec, boolean multiplexed, long sessionToken) throws IOException {
         Socket videoSocket = null;
         Socket controlSocket = null;
-        if (tunnelForward) {
+        if (multiplexed) {
+            videoSocket = openMultiplexed(port, tunnelForward, ip, host);
+        } else if (tunnelForward) {
             ServerSocket serverSocket = new ServerSocket(port, 2, InetAddress.getByName(ip));
             try {
                 //创建一个服务端的socket
@@ -85,7 +134,7 @@ public final class DesktopConnection implements Closeable {
                 serverSocket.close();
             }
         } else {
-            videoSocket = connect(host, port);
+            videoSocket = connectChannel(host, port);
             try {
                 controlSocket = connect(host, port);
             } catch (IOException | RuntimeException e) {
@@ -94,24 +143,69 @@ public final class DesktopConnection implements Closeable {
             }
         }
 
-        DesktopConnection connection = new DesktopConnection(videoSocket, controlSocket, buffer);
+        DesktopConnection connection;
+        try {
+            connection = new DesktopConnection(videoSocket, controlSocket, buffer);
+        } catch (IOException | RuntimeException e) {
+            videoSocket.close();
+            if (controlSocket != null) {
+                controlSocket.close();
+            }
+            throw e;
+        }
         Size videoSize = device.getScreenInfo().getVideoSize();
         Ln.d("DesktopConnection send DeviceName:" + Device.getDeviceName());
         Ln.d("DesktopConnection send videoWidth:" + videoSize.getWidth());
         Ln.d("DesktopConnection send videoHeight:" + videoSize.getHeight());
-        connection.send(Device.getDeviceName(), videoSize.getWidth(), videoSize.getHeight());
+        connection.send(Device.getDeviceName(), videoSize.getWidth(), videoSize.getHeight(), videoCodec, sessionToken);
         return connection;
     }
 
+    /**
+     * Open the single socket of a multiplexed connection: only one accept() (or connect()) is necessary.
+     * <p>
+     * It is a plain socket (not opened from a channel), since it is read and written concurrently.
+     */
+    private static Socket openMultiplexed(int port, boolean tunnelForward, String ip, String host) throws IOException {
+        if (!tunnelForward) {
+            return connect(host, port);
+        }
+        try (ServerSocket serverSocket = new ServerSocket(port, 1, InetAddress.getByName(ip))) {
+            Socket socket = serverSocket.accept();
+            Ln.d("DesktopConnection open multiplexed socket:" + socket);
+            // send one byte so the client may read() to detect a connection error
+            socket.getOutputStream().write(0);
+            return socket;
+        }
+    }
+
+    /**
+     * Send the video over RTP/UDP to the client host, instead of the video socket. The control messages stay on TCP.
+     * <p>
+     * Must be called before the first video packet is sent.
+     *
+     * @param port         the UDP port of the client
+     * @param fecGroupSize the number of packets protected by one parity packet, or 0 to disable FEC
+     */
+    public void enableRtp(int port, VideoCodec videoCodec, int fecGroupSize) throws IOException {
+        Socket socket = controlSocket != null ? controlSocket : videoSocket;
+        rtpSender = new RtpSender(socket.getInetAddress(), port, videoCodec, fecGroupSize);
+    }
+
     @Override
     public void close() {
         try {
+            if (rtpSender != null) {
+                rtpSender.close();
+            }
             videoSocket.shutdownInput();
             videoSocket.shutdownOutput();
             videoSocket.close();
-            controlSocket.shutdownInput();
-            controlSocket.shutdownOutput();
-            controlSocket.close();
+            if (controlSocket != null) {
+                controlSocket.shutdownInput();
+                controlSocket.shutdownOutput();
+                controlSocket.close();
+            }
         } catch (IOException e) {
             e.printStackTrace();
             RemoteService.setIsStarted(false);
@@ -119,8 +213,9 @@ public final class DesktopConnection implements Closeable {
     }
 
     @SuppressWarnings("checkstyle:MagicNumber")
-    private void send(String deviceName, int width, int height) throws IOException {
-        byte[] buffer = new byte[DEVICE_NAME_FIELD_LENGTH + 4];
+    private void send(String deviceName, int width, int height, VideoCodec videoCodec, long sessionToken) throws IOException {
+        int tokenOffset = DEVICE_NAME_FIELD_LENGTH + 4 + (videoCodec != null ? 4 : 0);
+        byte[] buffer = new byte[tokenOffset + (sessionToken != 0 ? 8 : 0)];
 
         byte[] deviceNameBytes = deviceName.getBytes(StandardCharsets.UTF_8);
         int len = StringUtils.getUtf8TruncationIndex(deviceNameBytes, DEVICE_NAME_FIELD_LENGTH - 1);
@@ -131,21 +226,91 @@ public final class DesktopConnection implements Closeable {
         buffer[DEVICE_NAME_FIELD_LENGTH + 1] = (byte) width;
         buffer[DEVICE_NAME_FIELD_LENGTH + 2] = (byte) (height >> 8);
         buffer[DEVICE_NAME_FIELD_LENGTH + 3] = (byte) height;
+        if (videoCodec != null) {
+            int codecId = videoCodec.getId();
+            buffer[DEVICE_NAME_FIELD_LENGTH + 4] = (byte) (codecId >> 24);
+            buffer[DEVICE_NAME_FIELD_LENGTH + 5] = (byte) (codecId >> 16);
+            buffer[DEVICE_NAME_FIELD_LENGTH + 6] = (byte) (codecId >> 8);
+            buffer[DEVICE_NAME_FIELD_LENGTH + 7] = (byte) codecId;
+        }
+        if (sessionToken != 0) {
+            for (int i = 0; i < 8; ++i) {
+                buffer[tokenOffset + i] = (byte) (sessionToken >> (56 - 8 * i));
+            }
+        }
 //        IO.writeFully(videoFd, buffer, 0, buffer.length);
-        IO.writeStreamFully(videoOutputStream, buffer, 0, buffer.length);
+        IO.writeFully(videoOutputChannel, ByteBuffer.wrap(buffer));
+    }
+
+    /**
+     * Send a video packet, preceded by its frame meta header if {@code header} is not null.
+     * <p>
+     * On a channel socket, the header and the payload are sent by a single gathering write, so that they do not cost
+     * two system calls (and possibly two TCP segments). The payload may be a direct buffer from the codec.
+     * <p>
+     * On a multiplexed connection, the packet is sent as video frames, interleaved with the device messages.
+     */
+    public void sendVideoPacket(ByteBuffer header, ByteBuffer payload) throws IOException {
+        if (multiplexer != null) {
+            multiplexer.writeVideo(header, payload);
+        } else if (header == null) {
+            IO.writeFully(videoOutputChannel, payload);
+        } else if (videoChannel != null) {
+            videoBuffers[0] = header;
+            videoBuffers[1] = payload;
+            try {
+                IO.writeFully(videoChannel, videoBuffers);
+            } finally {
+                // do not retain the codec buffer
+                videoBuffers[0] = null;
+                videoBuffers[1] = null;
+            }
+        } else {
+            IO.writeFully(videoOutputChannel, header);
+            IO.writeFully(videoOutputChannel, payload);
+        }
     }
 
-    public OutputStream getVideoOutputStream() {
-        return videoOutputStream;
+    /**
+     * Send an encoded video packet, over RTP if enabled (the frame meta header is then replaced by the RTP timestamp).
+     *
+     * @param ptsUs    the PTS relative to the start of the stream, or -1 for a config packet
+     * @param nalFlags the classification of the packet (see {@link NalParser#parse(ByteBuffer, int, VideoCodec)})
+     */
+    public void sendVideoPacket(ByteBuffer header, ByteBuffer payload, long ptsUs, int nalFlags) throws IOException {
+        if (rtpSender != null) {
+            rtpSender.send(payload, ptsUs, nalFlags);
+        } else {
+            sendVideoPacket(header, payload);
+        }
     }
 
+    /**
+     * Receive the next control message.
+     * <p>
+     * If the injection falls behind (typically a burst of messages delivered after a network stall), a move is skipped
+     * when a more recent move of the same pointer is already received, so that the pointer does not replay the past.
+     */
     public ControlMessage receiveControlMessage() throws IOException {
-        ControlMessage msg = reader.next();
-        while (msg == null) {
-            reader.readFrom(controlInputStream);
-            msg = reader.next();
+        while (true) {
+            ControlMessage msg = reader.next();
+            while (msg == null) {
+                reader.readFrom(controlInputStream);
+                msg = reader.next();
+            }
+            if (!reader.isFull() && controlInputStream.available() > 0) {
+                // does not block, and the current message is already decoded
+                reader.readFrom(controlInputStream);
+            }
+            if (!reader.isMoveSuperseded(msg)) {
+                return msg;
+            }
+            ++coalescedMoveCount;
         }
-        return msg;
+    }
+
+    public long getCoalescedMoveCount() {
+        return coalescedMoveCount;
     }
 
     public void sendDeviceMessage(DeviceMessage msg) throws IOException {
@@ -1,5 +1,6 @@
 package com.castles.remote.core;
 
+import com.castles.remote.core.wrappers.InputManager;
 import com.castles.remote.core.wrappers.ServiceManager;
 import com.castles.remote.core.wrappers.SurfaceControl;
 
@@ -7,49 +8,126 @@ import android.graphics.Rect;
 import android.os.Build;
 import android.os.IBinder;
 import android.os.RemoteException;
-//import android.view.IRotationWatcher;
+import android.view.IRotationWatcher;
 import android.view.InputEvent;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public final class Device {
 
     public static final int POWER_MODE_OFF = SurfaceControl.POWER_MODE_OFF;
     public static final int POWER_MODE_NORMAL = SurfaceControl.POWER_MODE_NORMAL;
     public static int id = 0;
 
-    public interface RotationListener {
-        void onRotationChanged(int rotation);
+    /**
+     * Notified (with the device lock held) when the screen info changes, on rotation or on video config change.
+     */
+    public interface ScreenInfoListener {
+        void onScreenInfoChanged(ScreenInfo screenInfo);
     }
 
     private final ServiceManager serviceManager = new ServiceManager();
 
+    private final int displayId;
+    private final int layerStack;
+    private final long physicalDisplayId;
     private ScreenInfo screenInfo;
-    private RotationListener rotationListener;
+    private Rect crop; // null for no crop
+    private int maxSize; // 0 for no limit
+    private final List<ScreenInfoListener> screenInfoListeners = new ArrayList<>();
 
-    public Device(Options options) {
-        screenInfo = computeScreenInfo(options.getCrop(), options.getMaxSize());
-        /*
-        registerRotationWatcher(new IRotationWatcher.Stub() {
-            @Override
-            public void onRotationChanged(int rotation) throws RemoteException {
-                synchronized (Device.this) {
-                    screenInfo = screenInfo.withRotation(rotation);
-
-                    // notify
-                    if (rotationListener != null) {
-                        rotationListener.onRotationChanged(rotation);
-                    }
+    private final IRotationWatcher rotationWatcher = new IRotationWatcher.Stub() {
+        @Override
+        public void onRotationChanged(int rotation) throws RemoteException {
+            synchronized (Device.this) {
+                ScreenInfo newScreenInfo = screenInfo.withRotation(rotation);
+                if (newScreenInfo != screenInfo) {
+                    setScreenInfo(newScreenInfo);
                 }
             }
-        });
-        */
+        }
+    };
+
+    public Device(Options options) {
+        displayId = options.getDisplayId();
+        DisplayInfo displayInfo = serviceManager.getDisplayManager().getDisplayInfo(displayId);
+        if (displayInfo == null) {
+            throw new IllegalArgumentException("Display " + displayId + " not found");
+        }
+        layerStack = displayInfo.getLayerStack();
+        physicalDisplayId = displayInfo.getPhysicalDisplayId();
+        crop = options.getCrop();
+        maxSize = options.getMaxSize();
+        screenInfo = computeScreenInfo(crop, maxSize);
+        if (!registerRotationWatcher(rotationWatcher)) {
+            throw new IllegalArgumentException("The rotation of display " + displayId + " cannot be watched on this device");
+        }
+    }
+
+    /**
+     * Stop watching the rotation, the service process outlives the session.
+     */
+    public void release() {
+        serviceManager.getWindowManager().removeRotationWatcher(rotationWatcher);
     }
 
     public synchronized ScreenInfo getScreenInfo() {
         return screenInfo;
     }
 
+    public int getDisplayId() {
+        return displayId;
+    }
+
+    /**
+     * @return the layer stack of the captured display, to be projected on the virtual display
+     */
+    public int getLayerStack() {
+        return layerStack;
+    }
+
+    public synchronized Rect getCrop() {
+        return crop;
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Change the crop and the max size at runtime: the screen info is recomputed and the listeners are notified, so
+     * that the encoder is reconfigured and the clients are informed of the new video size.
+     *
+     * @param crop    the new crop, or {@code null} for no crop
+     * @param maxSize the new max size (a multiple of 8), or 0 for no limit
+     */
+    public synchronized void setVideoConfig(Rect crop, int maxSize) {
+        ScreenInfo newScreenInfo = computeScreenInfo(crop, maxSize);
+        Size videoSize = newScreenInfo.getVideoSize();
+        if (videoSize.getWidth() == 0 || videoSize.getHeight() == 0) {
+            // the encoder could not be configured
+            Ln.w("Video config ignored, the video would be empty");
+            return;
+        }
+        this.crop = crop;
+        this.maxSize = maxSize;
+        setScreenInfo(newScreenInfo);
+        Ln.i("Video config changed: crop=" + (crop != null ? formatCrop(crop) : "-") + ", maxSize=" + maxSize + ", videoSize="
+                + screenInfo.getVideoSize());
+    }
+
+    private void setScreenInfo(ScreenInfo newScreenInfo) {
+        screenInfo = newScreenInfo;
+
+        // notify
+        for (ScreenInfoListener listener : screenInfoListeners) {
+            listener.onScreenInfoChanged(newScreenInfo);
+        }
+    }
+
     private ScreenInfo computeScreenInfo(Rect crop, int maxSize) {
-        DisplayInfo displayInfo = serviceManager.getDisplayManager().getDisplayInfo();
+        DisplayInfo displayInfo = serviceManager.getDisplayManager().getDisplayInfo(displayId);
         boolean rotated = (displayInfo.getRotation() & 1) != 0;
         Size deviceSize = displayInfo.getSize();
         Rect contentRect = new Rect(0, 0, deviceSize.getWidth(), deviceSize.getHeight());
@@ -102,22 +180,28 @@ public final class Device {
         return new Size(w, h);
     }
 
-    public Point getPhysicalPoint(Position position) {
+    /**
+     * Map a position relative to the video to the physical screen, without allocation.
+     *
+     * @param screenWidth   the width of the video the position is relative to
+     * @param screenHeight  the height of the video the position is relative to
+     * @param physicalPoint receives the physical x and y
+     * @return {@code false} if the position must be ignored
+     */
+    public boolean getPhysicalPoint(int x, int y, int screenWidth, int screenHeight, int[] physicalPoint) {
         // it hides the field on purpose, to read it with a lock
         @SuppressWarnings("checkstyle:HiddenField")
         ScreenInfo screenInfo = getScreenInfo(); // read with synchronization
         Size videoSize = screenInfo.getVideoSize();
-        Size clientVideoSize = position.getScreenSize();
-        if (!videoSize.equals(clientVideoSize)) {
+        if (videoSize.getWidth() != screenWidth || videoSize.getHeight() != screenHeight) {
             // The client sends a click relative to a video with wrong dimensions,
             // the device may have been rotated since the event was generated, so ignore the event
-            return null;
+            return false;
         }
         Rect contentRect = screenInfo.getContentRect();
-        Point point = position.getPoint();
-        int scaledX = contentRect.left + point.getX() * contentRect.width() / videoSize.getWidth();
-        int scaledY = contentRect.top + point.getY() * contentRect.height() / videoSize.getHeight();
-        return new Point(scaledX, scaledY);
+        physicalPoint[0] = contentRect.left + x * contentRect.width() / videoSize.getWidth();
+        physicalPoint[1] = contentRect.top + y * contentRect.height() / videoSize.getHeight();
+        return true;
     }
 
     public static String getDeviceName() {
@@ -129,19 +213,32 @@ public final class Device {
     }
 
     public boolean injectInputEvent(InputEvent inputEvent, int mode) {
+        if (displayId != 0) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || !InputManager.setDisplayId(inputEvent, displayId)) {
+                // the event would be injected to the default display
+                return false;
+            }
+        }
         return serviceManager.getInputManager().injectInputEvent(inputEvent, mode);
     }
 
     public boolean isScreenOn() {
         return serviceManager.getPowerManager().isScreenOn();
     }
-/*
-    public void registerRotationWatcher(IRotationWatcher rotationWatcher) {
-        serviceManager.getWindowManager().registerRotationWatcher(rotationWatcher);
+
+    /**
+     * @return {@code false} if the rotation of the display cannot be watched
+     */
+    public boolean registerRotationWatcher(IRotationWatcher rotationWatcher) {
+        return serviceManager.getWindowManager().registerRotationWatcher(rotationWatcher, displayId);
     }
-*/
-    public synchronized void setRotationListener(RotationListener rotationListener) {
-        this.rotationListener = rotationListener;
+
+    public synchronized void addScreenInfoListener(ScreenInfoListener listener) {
+        screenInfoListeners.add(listener);
+    }
+
+    public synchronized void removeScreenInfoListener(ScreenInfoListener listener) {
+        screenInfoListeners.remove(listener);
     }
 
     public void expandNotificationPanel() {
@@ -161,15 +258,24 @@ public final class Device {
     }
 
     public void setClipboardText(String text) {
-        serviceManager.getClipboardManager().setText(text);
-        Ln.i("Device clipboard set");
+        if (serviceManager.getClipboardManager().setText(text)) {
+            Ln.i("Device clipboard set");
+        }
     }
 
     /**
      * @param mode one of the {@code SCREEN_POWER_MODE_*} constants
      */
     public void setScreenPowerMode(int mode) {
-        IBinder d = SurfaceControl.getBuiltInDisplay(0);
+        IBinder d;
+        if (displayId == 0) {
+            d = SurfaceControl.getBuiltInDisplay(0);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && physicalDisplayId != DisplayInfo.NO_PHYSICAL_DISPLAY_ID) {
+            d = SurfaceControl.getPhysicalDisplayToken(physicalDisplayId);
+        } else {
+            Ln.w("Could not change the power mode of display " + displayId);
+            return;
+        }
         SurfaceControl.setDisplayPowerMode(d, mode);
         Ln.i("Device screen turned " + (mode == Device.POWER_MODE_OFF ? "off" : "on"));
     }
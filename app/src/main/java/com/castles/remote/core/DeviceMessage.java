@@ -3,9 +3,11 @@ package com.castles.remote.core;
 public final class DeviceMessage {
 
     public static final int TYPE_CLIPBOARD = 0;
+    public static final int TYPE_VIDEO_SIZE = 1;
 
     private int type;
     private String text;
+    private Size videoSize;
 
     private DeviceMessage() {
     }
@@ -17,6 +19,13 @@ public final class DeviceMessage {
         return event;
     }
 
+    public static DeviceMessage createVideoSize(Size videoSize) {
+        DeviceMessage event = new DeviceMessage();
+        event.type = TYPE_VIDEO_SIZE;
+        event.videoSize = videoSize;
+        return event;
+    }
+
     public int getType() {
         return type;
     }
@@ -24,4 +33,8 @@ public final class DeviceMessage {
     public String getText() {
         return text;
     }
+
+    public Size getVideoSize() {
+        return videoSize;
+    }
 }
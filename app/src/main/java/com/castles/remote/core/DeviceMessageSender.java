@@ -7,6 +7,7 @@ public final class DeviceMessageSender {
     private final DesktopConnection connection;
 
     private String clipboardText;
+    private Size videoSize;
 
     public DeviceMessageSender(DesktopConnection connection) {
         this.connection = connection;
@@ -17,18 +18,34 @@ public final class DeviceMessageSender {
         notify();
     }
 
+    /**
+     * Notify the client of the new video size (only the last one is sent if several are pending).
+     */
+    public synchronized void pushVideoSize(Size size) {
+        videoSize = size;
+        notify();
+    }
+
     public void loop() throws IOException, InterruptedException {
         while (true) {
             String text;
+            Size size;
             synchronized (this) {
-                while (clipboardText == null) {
+                while (clipboardText == null && videoSize == null) {
                     wait();
                 }
                 text = clipboardText;
                 clipboardText = null;
+                size = videoSize;
+                videoSize = null;
+            }
+            if (size != null) {
+                connection.sendDeviceMessage(DeviceMessage.createVideoSize(size));
+            }
+            if (text != null) {
+                DeviceMessage event = DeviceMessage.createClipboard(text);
+                connection.sendDeviceMessage(event);
             }
-            DeviceMessage event = DeviceMessage.createClipboard(text);
-            connection.sendDeviceMessage(event);
         }
     }
 }
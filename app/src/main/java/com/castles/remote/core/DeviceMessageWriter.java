@@ -8,7 +8,7 @@ import java.nio.charset.StandardCharsets;
 public class DeviceMessageWriter {
 
     public static final int CLIPBOARD_TEXT_MAX_LENGTH = 4093;
-    private static final int MAX_EVENT_SIZE = CLIPBOARD_TEXT_MAX_LENGTH + 3;
+    static final int MAX_EVENT_SIZE = CLIPBOARD_TEXT_MAX_LENGTH + 3;
 
     private final byte[] rawBuffer = new byte[MAX_EVENT_SIZE];
     private final ByteBuffer buffer = ByteBuffer.wrap(rawBuffer);
@@ -16,7 +16,7 @@ public class DeviceMessageWriter {
     @SuppressWarnings("checkstyle:MagicNumber")
     public void writeTo(DeviceMessage msg, OutputStream output) throws IOException {
         buffer.clear();
-        buffer.put((byte) DeviceMessage.TYPE_CLIPBOARD);
+        buffer.put((byte) msg.getType());
         switch (msg.getType()) {
             case DeviceMessage.TYPE_CLIPBOARD:
                 String text = msg.getText();
@@ -26,6 +26,12 @@ public class DeviceMessageWriter {
                 buffer.put(raw, 0, len);
                 output.write(rawBuffer, 0, buffer.position());
                 break;
+            case DeviceMessage.TYPE_VIDEO_SIZE:
+                Size videoSize = msg.getVideoSize();
+                buffer.putShort((short) videoSize.getWidth());
+                buffer.putShort((short) videoSize.getHeight());
+                output.write(rawBuffer, 0, buffer.position());
+                break;
             default:
                 Ln.w("Unknown device message: " + msg.getType());
                 break;
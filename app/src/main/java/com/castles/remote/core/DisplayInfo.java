@@ -1,12 +1,25 @@
 package com.castles.remote.core;
 
 public final class DisplayInfo {
+
+    public static final long NO_PHYSICAL_DISPLAY_ID = -1;
+
+    private final int displayId;
     private final Size size;
     private final int rotation;
+    private final int layerStack;
+    private final long physicalDisplayId;
 
-    public DisplayInfo(Size size, int rotation) {
+    public DisplayInfo(int displayId, Size size, int rotation, int layerStack, long physicalDisplayId) {
+        this.displayId = displayId;
         this.size = size;
         this.rotation = rotation;
+        this.layerStack = layerStack;
+        this.physicalDisplayId = physicalDisplayId;
+    }
+
+    public int getDisplayId() {
+        return displayId;
     }
 
     public Size getSize() {
@@ -16,5 +29,15 @@ public final class DisplayInfo {
     public int getRotation() {
         return rotation;
     }
-}
 
+    public int getLayerStack() {
+        return layerStack;
+    }
+
+    /**
+     * @return the id to retrieve the display token (since Android Q), or {@link #NO_PHYSICAL_DISPLAY_ID} if unknown
+     */
+    public long getPhysicalDisplayId() {
+        return physicalDisplayId;
+    }
+}
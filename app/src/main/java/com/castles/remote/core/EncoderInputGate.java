@@ -0,0 +1,55 @@
+package com.castles.remote.core;
+
+import android.media.MediaCodec;
+import android.os.Bundle;
+
+/**
+ * Suspend the input of the encoder (the frames rendered meanwhile are dropped) on behalf of independent users, so that
+ * one of them does not resume the input while another one needs it suspended.
+ */
+public final class EncoderInputGate {
+
+    public static final int SUSPENDED_BY_IDLE_MONITOR = 1;
+    public static final int SUSPENDED_BY_FRAME_PACER = 1 << 1;
+
+    private MediaCodec codec;
+    private int suspendedBy; // bitmask of the users which need the input suspended
+
+    /**
+     * Attach the started codec, its input is not suspended.
+     */
+    public synchronized void start(MediaCodec codec) {
+        this.codec = codec;
+        suspendedBy = 0;
+    }
+
+    public synchronized void stop() {
+        codec = null;
+        suspendedBy = 0;
+    }
+
+    /**
+     * @param user one of the {@code SUSPENDED_BY_*} constants
+     */
+    public synchronized void setSuspended(int user, boolean suspended) {
+        if (codec == null) {
+            return;
+        }
+        boolean wasSuspended = suspendedBy != 0;
+        if (suspended) {
+            suspendedBy |= user;
+        } else {
+            suspendedBy &= ~user;
+        }
+        boolean nowSuspended = suspendedBy != 0;
+        if (nowSuspended != wasSuspended) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_SUSPEND, nowSuspended ? 1 : 0);
+            try {
+                codec.setParameters(params);
+            } catch (IllegalStateException e) {
+                // the codec is being stopped
+            }
+        }
+    }
+}
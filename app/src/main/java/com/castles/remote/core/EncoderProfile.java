@@ -0,0 +1,133 @@
+package com.castles.remote.core;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Range;
+
+/**
+ * Named sets of encoder settings, selectable per session.
+ * <p>
+ * Every key is guarded by a capability check (API level or codec capabilities), so that unsupported keys are skipped
+ * rather than making the configuration fail. The priority, the latency and the B-frames cannot be checked against the
+ * codec capabilities: they are only applied if {@code uncheckedKeys} is set, so that they can be dropped if the encoder
+ * rejects them.
+ */
+public enum EncoderProfile {
+    /**
+     * For interactive control: no encoder-side buffering, constant bitrate, no B-frames.
+     */
+    LOW_LATENCY("low-latency"),
+    /**
+     * Realtime priority and no B-frames, but variable bitrate.
+     */
+    BALANCED("balanced"),
+    /**
+     * For screen recording: best quality for a given bitrate, latency does not matter.
+     */
+    QUALITY("quality");
+
+    // MediaFormat.KEY_LATENCY, added in Android 11 (not available in the compile SDK)
+    private static final String KEY_LATENCY = "latency";
+    private static final int SDK_INT_KEY_LATENCY = 30;
+
+    private static final int PRIORITY_REALTIME = 0;
+    private static final int PRIORITY_NON_REALTIME = 1;
+
+    private final String name;
+
+    EncoderProfile(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public static EncoderProfile findByName(String name) {
+        for (EncoderProfile profile : values()) {
+            if (profile.name.equals(name)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Apply the profile settings supported by the encoder.
+     *
+     * @param capabilities  the capabilities of the encoder for the codec mime type
+     * @param uncheckedKeys whether to apply the settings which cannot be checked against the capabilities
+     */
+    public void apply(MediaFormat format, MediaCodecInfo.CodecCapabilities capabilities, VideoCodec videoCodec, int frameRate,
+            boolean uncheckedKeys) {
+        boolean lowLatency = this == LOW_LATENCY;
+        boolean quality = this == QUALITY;
+
+        if (uncheckedKeys) {
+            if (lowLatency && Build.VERSION.SDK_INT >= SDK_INT_KEY_LATENCY) {
+                // output each frame as soon as it is encoded
+                format.setInteger(KEY_LATENCY, 1);
+            }
+            format.setInteger(MediaFormat.KEY_PRIORITY, quality ? PRIORITY_NON_REALTIME : PRIORITY_REALTIME);
+            if (!quality && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                format.setInteger(MediaFormat.KEY_MAX_B_FRAMES, 0);
+            }
+        }
+
+        MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
+        if (videoCapabilities != null) {
+            Range<Integer> frameRates = videoCapabilities.getSupportedFrameRates();
+            // for a low latency, ask the codec to run as fast as it can (not only at the nominal frame rate)
+            int operatingRate = lowLatency ? frameRates.getUpper() : frameRates.clamp(frameRate);
+            format.setInteger(MediaFormat.KEY_OPERATING_RATE, operatingRate);
+        }
+
+        int bitrateMode = lowLatency
+                ? MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR : MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+        MediaCodecInfo.EncoderCapabilities encoderCapabilities = capabilities.getEncoderCapabilities();
+        if (encoderCapabilities != null && encoderCapabilities.isBitrateModeSupported(bitrateMode)) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, bitrateMode);
+        }
+
+        int profile = getCodecProfile(videoCodec);
+        if (profile != 0) {
+            int maxLevel = findMaxLevel(capabilities, profile);
+            if (maxLevel != 0) {
+                format.setInteger(MediaFormat.KEY_PROFILE, profile);
+                format.setInteger(MediaFormat.KEY_LEVEL, maxLevel);
+            }
+        }
+    }
+
+    private int getCodecProfile(VideoCodec videoCodec) {
+        if (videoCodec == VideoCodec.H265) {
+            // Main is the only widely supported HEVC profile for 8-bit content
+            return this == QUALITY ? MediaCodecInfo.CodecProfileLevel.HEVCProfileMain : 0;
+        }
+        switch (this) {
+            case LOW_LATENCY:
+                // no B-frames, cheapest to decode
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+            case QUALITY:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return the highest level supported by the encoder for the profile, or 0 if the profile is not supported
+     */
+    private static int findMaxLevel(MediaCodecInfo.CodecCapabilities capabilities, int profile) {
+        int maxLevel = 0;
+        if (capabilities.profileLevels != null) {
+            for (MediaCodecInfo.CodecProfileLevel profileLevel : capabilities.profileLevels) {
+                if (profileLevel.profile == profile) {
+                    maxLevel = Math.max(maxLevel, profileLevel.level);
+                }
+            }
+        }
+        return maxLevel;
+    }
+}
@@ -0,0 +1,141 @@
+package com.castles.remote.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-frame encoder and socket instrumentation.
+ * <p>
+ * Recording is lock-free and allocation-free. Other parts of the server may read a consistent-enough view with
+ * {@link #snapshot()}. A summary is logged every {@link #SUMMARY_INTERVAL_NS}.
+ */
+public final class EncoderStats {
+
+    private static final long SUMMARY_INTERVAL_NS = 10_000_000_000L; // 10 s
+
+    // time between the frame presentation (composition) and its output by the encoder
+    private final Histogram encodeLatencyUs = new Histogram();
+    private final Histogram writeTimeUs = new Histogram();
+    private final Histogram packetSize = new Histogram();
+
+    private final AtomicLong frameCount = new AtomicLong();
+    private final AtomicLong keyFrameCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final AtomicLong nextSummaryNs = new AtomicLong();
+
+    /**
+     * Immutable view of the statistics.
+     */
+    public static final class Snapshot {
+        private final long frameCount;
+        private final long keyFrameCount;
+        private final long byteCount;
+        private final long encodeLatencyP50Us;
+        private final long encodeLatencyP99Us;
+        private final long encodeLatencyMaxUs;
+        private final long writeTimeP50Us;
+        private final long writeTimeP99Us;
+        private final long writeTimeMaxUs;
+        private final long packetSizeMean;
+        private final long packetSizeMax;
+
+        private Snapshot(EncoderStats stats) {
+            frameCount = stats.frameCount.get();
+            keyFrameCount = stats.keyFrameCount.get();
+            byteCount = stats.byteCount.get();
+            encodeLatencyP50Us = stats.encodeLatencyUs.getValueAtPercentile(50);
+            encodeLatencyP99Us = stats.encodeLatencyUs.getValueAtPercentile(99);
+            encodeLatencyMaxUs = stats.encodeLatencyUs.getMax();
+            writeTimeP50Us = stats.writeTimeUs.getValueAtPercentile(50);
+            writeTimeP99Us = stats.writeTimeUs.getValueAtPercentile(99);
+            writeTimeMaxUs = stats.writeTimeUs.getMax();
+            packetSizeMean = stats.packetSize.getMean();
+            packetSizeMax = stats.packetSize.getMax();
+        }
+
+        public long getFrameCount() {
+            return frameCount;
+        }
+
+        public long getKeyFrameCount() {
+            return keyFrameCount;
+        }
+
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        public long getEncodeLatencyP50Us() {
+            return encodeLatencyP50Us;
+        }
+
+        public long getEncodeLatencyP99Us() {
+            return encodeLatencyP99Us;
+        }
+
+        public long getEncodeLatencyMaxUs() {
+            return encodeLatencyMaxUs;
+        }
+
+        public long getWriteTimeP50Us() {
+            return writeTimeP50Us;
+        }
+
+        public long getWriteTimeP99Us() {
+            return writeTimeP99Us;
+        }
+
+        public long getWriteTimeMaxUs() {
+            return writeTimeMaxUs;
+        }
+
+        public long getPacketSizeMean() {
+            return packetSizeMean;
+        }
+
+        public long getPacketSizeMax() {
+            return packetSizeMax;
+        }
+
+        @Override
+        public String toString() {
+            return "frames=" + frameCount + " (key=" + keyFrameCount + "), bytes=" + byteCount
+                    + ", encode latency p50/p99/max=" + encodeLatencyP50Us + "/" + encodeLatencyP99Us + "/" + encodeLatencyMaxUs + "µs"
+                    + ", write time p50/p99/max=" + writeTimeP50Us + "/" + writeTimeP99Us + "/" + writeTimeMaxUs + "µs"
+                    + ", packet size mean/max=" + packetSizeMean + "/" + packetSizeMax;
+        }
+    }
+
+    /**
+     * Account a (non-config) packet output by the encoder.
+     *
+     * @param presentationTimeUs the presentation time of the frame, in the {@link System#nanoTime()} time base
+     */
+    public void onPacketEncoded(long presentationTimeUs, int size, boolean keyFrame) {
+        encodeLatencyUs.record(System.nanoTime() / 1000 - presentationTimeUs);
+        packetSize.record(size);
+        frameCount.incrementAndGet();
+        byteCount.addAndGet(size);
+        if (keyFrame) {
+            keyFrameCount.incrementAndGet();
+        }
+    }
+
+    public void onPacketWritten(long writeTimeNs) {
+        writeTimeUs.record(writeTimeNs / 1000);
+        logSummaryIfNeeded();
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    private void logSummaryIfNeeded() {
+        long now = System.nanoTime();
+        long next = nextSummaryNs.get();
+        if (next == 0) {
+            nextSummaryNs.compareAndSet(0, now + SUMMARY_INTERVAL_NS);
+        } else if (now >= next && nextSummaryNs.compareAndSet(next, now + SUMMARY_INTERVAL_NS)) {
+            Ln.i("Encoder stats: " + snapshot());
+        }
+    }
+}
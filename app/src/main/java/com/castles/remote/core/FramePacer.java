@@ -0,0 +1,70 @@
+package com.castles.remote.core;
+
+import android.os.Handler;
+
+/**
+ * Software frame rate cap, for devices which do not support {@code KEY_MAX_FPS_TO_ENCODER} (before Android 10).
+ * <p>
+ * The input of the encoder is a surface, so the frames cannot be filtered one by one. Instead, the input is suspended
+ * after each encoded frame until the end of its frame interval: the frames rendered meanwhile are dropped by the
+ * encoder input, before encoding. Like with {@code KEY_MAX_FPS_TO_ENCODER}, if the screen becomes static right after a
+ * dropped frame, its content is only encoded with the next change (or the next periodic refresh in idle mode).
+ */
+public final class FramePacer {
+
+    // resume slightly before the end of the interval, so that a frame rendered right on time is not dropped
+    private static final long RESUME_MARGIN_US = 2000;
+
+    private final Handler handler;
+    private final EncoderInputGate inputGate;
+    private final long frameIntervalUs;
+
+    private boolean started;
+
+    private final Runnable resume = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (FramePacer.this) {
+                if (started) {
+                    inputGate.setSuspended(EncoderInputGate.SUSPENDED_BY_FRAME_PACER, false);
+                }
+            }
+        }
+    };
+
+    public FramePacer(Handler handler, EncoderInputGate inputGate, int maxFps) {
+        this.handler = handler;
+        this.inputGate = inputGate;
+        frameIntervalUs = 1_000_000 / maxFps;
+    }
+
+    public synchronized void start() {
+        started = true;
+    }
+
+    public synchronized void stop() {
+        started = false;
+        handler.removeCallbacks(resume);
+    }
+
+    /**
+     * Account an encoded (non-config) frame.
+     *
+     * @param ptsUs the capture time of the frame, on the {@link System#nanoTime()} clock
+     */
+    public synchronized void onFrame(long ptsUs) {
+        if (!started) {
+            return;
+        }
+        long nowUs = System.nanoTime() / 1000;
+        // the PTS of a repeated frame is not a capture time, never suspend longer than an interval
+        long delayUs = Math.min(ptsUs + frameIntervalUs, nowUs + frameIntervalUs) - RESUME_MARGIN_US - nowUs;
+        if (delayUs <= 0) {
+            // encoded later than the end of its interval, the next frame is already due
+            return;
+        }
+        inputGate.setSuspended(EncoderInputGate.SUSPENDED_BY_FRAME_PACER, true);
+        handler.removeCallbacks(resume);
+        handler.postDelayed(resume, (delayUs + 999) / 1000);
+    }
+}
@@ -0,0 +1,198 @@
+package com.castles.remote.core;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cache of the packets of the current GOP (from the last key frame), so that a viewer joining a running stream can
+ * start decoding immediately instead of waiting for the next key frame.
+ * <p>
+ * The packets are stored in a fixed off-heap ring buffer: a new key frame starts right after the previous packet, so
+ * nothing is ever compacted or reallocated. If the GOP does not fit, the cache is invalid until the next key frame.
+ * <p>
+ * It is not thread-safe, it is accessed under the {@link VideoBroadcaster} lock.
+ */
+public final class GopCache {
+
+    private final ByteBuffer ring;
+    private final int capacity;
+
+    private final int[] offsets;
+    private final int[] sizes;
+    private final int[] flags;
+    private final int[] nalFlags;
+    private final long[] presentationTimesUs;
+
+    private int count;
+    private int start; // ring offset of the key frame
+    private int used;
+    private boolean valid;
+
+    /**
+     * @param capacity   the size of the ring buffer in bytes
+     * @param maxPackets the maximum number of packets in a GOP
+     */
+    public GopCache(int capacity, int maxPackets) {
+        this.capacity = capacity;
+        ring = ByteBuffer.allocateDirect(capacity);
+        offsets = new int[maxPackets];
+        sizes = new int[maxPackets];
+        flags = new int[maxPackets];
+        nalFlags = new int[maxPackets];
+        presentationTimesUs = new long[maxPackets];
+    }
+
+    /**
+     * Copy a (non-config) packet into the cache, without changing the buffer position.
+     */
+    public void add(ByteBuffer buffer, long presentationTimeUs, int packetFlags, int packetNalFlags) {
+        if ((packetFlags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            start = (start + used) % capacity;
+            used = 0;
+            count = 0;
+            valid = true;
+        }
+        if (!valid) {
+            return;
+        }
+        int size = buffer.remaining();
+        if (used + size > capacity || count == offsets.length) {
+            Ln.d("GOP too large to be cached");
+            invalidate();
+            return;
+        }
+
+        int offset = (start + used) % capacity;
+        int position = buffer.position();
+        int limit = buffer.limit();
+        int firstPart = Math.min(size, capacity - offset);
+        ring.clear();
+        ring.position(offset);
+        buffer.limit(position + firstPart);
+        ring.put(buffer);
+        if (firstPart < size) {
+            // wrap around
+            ring.position(0);
+            buffer.limit(limit);
+            ring.put(buffer);
+        }
+        buffer.limit(limit);
+        buffer.position(position);
+
+        offsets[count] = offset;
+        sizes[count] = size;
+        flags[count] = packetFlags;
+        nalFlags[count] = packetNalFlags;
+        presentationTimesUs[count] = presentationTimeUs;
+        ++count;
+        used += size;
+    }
+
+    /**
+     * Drop the cached packets until the next key frame (typically when the codec config changes).
+     */
+    public void invalidate() {
+        valid = false;
+        count = 0;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Copy the codec config and the cached GOP, to be replayed to a new viewer.
+     *
+     * @param config the codec config packet, or {@code null} if none
+     */
+    public Snapshot snapshot(VideoPacket config) {
+        int packetCount = valid ? count : 0;
+        int configSize = config != null ? config.getSize() : 0;
+        Snapshot snapshot = new Snapshot(configSize + (valid ? used : 0), packetCount + (config != null ? 1 : 0));
+        if (config != null) {
+            snapshot.add(config.getData().duplicate(), config.getPresentationTimeUs(), config.getFlags(), config.getNalFlags());
+        }
+        ByteBuffer source = ring.duplicate();
+        for (int i = 0; i < packetCount; ++i) {
+            int offset = offsets[i];
+            int size = sizes[i];
+            int firstPart = Math.min(size, capacity - offset);
+            source.limit(offset + firstPart).position(offset);
+            snapshot.data.put(source);
+            if (firstPart < size) {
+                source.limit(size - firstPart).position(0);
+                snapshot.data.put(source);
+            }
+            snapshot.addEntry(size, presentationTimesUs[i], flags[i], nalFlags[i]);
+        }
+        snapshot.data.flip();
+        return snapshot;
+    }
+
+    /**
+     * Contiguous copy of packets, owned by a single viewer.
+     */
+    public static final class Snapshot {
+        private final ByteBuffer data;
+        private final int[] offsets;
+        private final int[] sizes;
+        private final int[] flags;
+        private final int[] nalFlags;
+        private final long[] presentationTimesUs;
+        private int count;
+
+        private Snapshot(int size, int maxPackets) {
+            data = ByteBuffer.allocateDirect(size);
+            offsets = new int[maxPackets];
+            sizes = new int[maxPackets];
+            flags = new int[maxPackets];
+            nalFlags = new int[maxPackets];
+            presentationTimesUs = new long[maxPackets];
+        }
+
+        private void add(ByteBuffer buffer, long presentationTimeUs, int packetFlags, int packetNalFlags) {
+            int size = buffer.remaining();
+            data.put(buffer);
+            addEntry(size, presentationTimeUs, packetFlags, packetNalFlags);
+        }
+
+        private void addEntry(int size, long presentationTimeUs, int packetFlags, int packetNalFlags) {
+            offsets[count] = data.position() - size;
+            sizes[count] = size;
+            flags[count] = packetFlags;
+            nalFlags[count] = packetNalFlags;
+            presentationTimesUs[count] = presentationTimeUs;
+            ++count;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return a view of the packet data
+         */
+        public ByteBuffer getData(int index) {
+            ByteBuffer packet = data.duplicate();
+            packet.limit(offsets[index] + sizes[index]).position(offsets[index]);
+            return packet;
+        }
+
+        public int getSize(int index) {
+            return sizes[index];
+        }
+
+        public int getFlags(int index) {
+            return flags[index];
+        }
+
+        public int getNalFlags(int index) {
+            return nalFlags[index];
+        }
+
+        public long getPresentationTimeUs(int index) {
+            return presentationTimesUs[index];
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
 
 public final class IO {
@@ -41,14 +42,36 @@ public final class IO {
         writeFully(fd, ByteBuffer.wrap(buffer, offset, len));
     }
 
-    public static void writeStreamFully(OutputStream outputStream, ByteBuffer from) throws IOException {
-        try {
-//            outputStream.write(from.array(), 0, from.array().length);
-            WritableByteChannel channel = Channels.newChannel(outputStream);
+    public static void writeFully(WritableByteChannel channel, ByteBuffer from) throws IOException {
+        while (from.hasRemaining()) {
             channel.write(from);
-            channel = null;
-        } catch (IOException e) {
-            throw e;
+        }
+    }
+
+    /**
+     * Write all the buffers using as few system calls as possible (typically one).
+     * <p>
+     * A gathering write may be partial, so loop until every buffer has been fully written.
+     */
+    public static void writeFully(GatheringByteChannel channel, ByteBuffer[] from) throws IOException {
+        int offset = 0;
+        while (offset < from.length) {
+            if (!from[offset].hasRemaining()) {
+                // skip the buffers already fully written
+                ++offset;
+            } else {
+                channel.write(from, offset, from.length - offset);
+            }
+        }
+    }
+
+    public static void writeStreamFully(OutputStream outputStream, ByteBuffer from) throws IOException {
+        if (from.hasArray()) {
+            // no need for a channel (nor a copy) to write a heap buffer
+            outputStream.write(from.array(), from.arrayOffset() + from.position(), from.remaining());
+            from.position(from.limit());
+        } else {
+            writeFully(Channels.newChannel(outputStream), from);
         }
     }
 
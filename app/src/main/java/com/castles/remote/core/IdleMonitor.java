@@ -0,0 +1,129 @@
+package com.castles.remote.core;
+
+import android.os.Handler;
+
+/**
+ * Detect a static screen from the encoder output, and lower the refresh rate while it stays static.
+ * <p>
+ * When the screen does not change, the encoder only produces tiny (repeated) frames. Once this has lasted for
+ * {@link #IDLE_DELAY_NS}, the encoder input is suspended, and only resumed for a short sampling window every
+ * {@link #IDLE_REFRESH_INTERVAL_MS}. The full rate is restored on the first large frame (the screen has changed) or on
+ * the first injected input event.
+ */
+public final class IdleMonitor {
+
+    private static final int STATIC_PACKET_MAX_SIZE = 512; // bytes
+    private static final long IDLE_DELAY_NS = 2_000_000_000L; // 2 s
+    private static final long IDLE_REFRESH_INTERVAL_MS = 1000;
+    private static final long IDLE_SAMPLE_WINDOW_MS = 200;
+
+    private final Handler handler;
+    private final EncoderInputGate inputGate;
+
+    private boolean started;
+    private boolean idle;
+    private long staticSinceNs; // 0 if the last packet was not static
+
+    private final Runnable resumeSampling = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (IdleMonitor.this) {
+                if (idle) {
+                    setSuspended(false);
+                    handler.postDelayed(suspendSampling, IDLE_SAMPLE_WINDOW_MS);
+                }
+            }
+        }
+    };
+
+    private final Runnable suspendSampling = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (IdleMonitor.this) {
+                if (idle) {
+                    setSuspended(true);
+                    handler.postDelayed(resumeSampling, IDLE_REFRESH_INTERVAL_MS);
+                }
+            }
+        }
+    };
+
+    public IdleMonitor(Handler handler, EncoderInputGate inputGate) {
+        this.handler = handler;
+        this.inputGate = inputGate;
+    }
+
+    public synchronized void start() {
+        started = true;
+        idle = false;
+        staticSinceNs = 0;
+    }
+
+    public synchronized void stop() {
+        handler.removeCallbacks(resumeSampling);
+        handler.removeCallbacks(suspendSampling);
+        started = false;
+        idle = false;
+    }
+
+    /**
+     * Account an encoded (non-config) packet.
+     */
+    public synchronized void onPacket(int size, boolean keyFrame) {
+        if (!started) {
+            return;
+        }
+        boolean isStatic = !keyFrame && size <= STATIC_PACKET_MAX_SIZE;
+        if (idle) {
+            if (!isStatic) {
+                exitIdle("screen changed");
+            }
+            return;
+        }
+        if (!isStatic) {
+            staticSinceNs = 0;
+            return;
+        }
+        long now = System.nanoTime();
+        if (staticSinceNs == 0) {
+            staticSinceNs = now;
+        } else if (now - staticSinceNs >= IDLE_DELAY_NS) {
+            enterIdle();
+        }
+    }
+
+    /**
+     * Restore the full rate immediately, an input event will probably change the screen content.
+     */
+    public synchronized void wakeUp() {
+        if (idle) {
+            exitIdle("input event");
+        } else {
+            staticSinceNs = 0;
+        }
+    }
+
+    public synchronized boolean isIdle() {
+        return idle;
+    }
+
+    private void enterIdle() {
+        Ln.d("Screen static, entering idle mode");
+        idle = true;
+        setSuspended(true);
+        handler.postDelayed(resumeSampling, IDLE_REFRESH_INTERVAL_MS);
+    }
+
+    private void exitIdle(String reason) {
+        Ln.d("Exiting idle mode (" + reason + ")");
+        idle = false;
+        staticSinceNs = 0;
+        handler.removeCallbacks(resumeSampling);
+        handler.removeCallbacks(suspendSampling);
+        setSuspended(false);
+    }
+
+    private void setSuspended(boolean suspended) {
+        inputGate.setSuspended(EncoderInputGate.SUSPENDED_BY_IDLE_MONITOR, suspended);
+    }
+}
@@ -0,0 +1,230 @@
+package com.castles.remote.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Carry the video stream and the control messages (in both directions) as framed channels over a single socket.
+ * <p>
+ * Each frame is a channel id (1 byte), a payload length (4 bytes, big-endian) and the payload. The concatenation of the
+ * payloads of a channel is exactly the stream that would be sent on its dedicated socket.
+ * <p>
+ * The video packets are split into small frames, and the writers share a fair lock: a device message waits for at most
+ * one video chunk, never for a whole key frame.
+ */
+public final class Multiplexer {
+
+    public static final int CHANNEL_VIDEO = 0;
+    public static final int CHANNEL_CONTROL = 1;
+
+    private static final int FRAME_HEADER_LENGTH = 5;
+    private static final int VIDEO_CHUNK_SIZE = 16 * 1024;
+
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+
+    // fair, so that a writer waiting for the lock gets it as soon as the video writer releases it between two chunks
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    // only accessed with the write lock held
+    private final byte[] videoFrame = new byte[FRAME_HEADER_LENGTH + VIDEO_CHUNK_SIZE];
+    private final ByteBuffer videoFrameBuffer = ByteBuffer.wrap(videoFrame);
+    private final byte[] controlFrame = new byte[FRAME_HEADER_LENGTH + DeviceMessageWriter.MAX_EVENT_SIZE];
+
+    private final InputStream controlInputStream = new ControlInputStream();
+    private final OutputStream controlOutputStream = new ControlOutputStream();
+
+    public Multiplexer(Socket socket) throws IOException {
+        // the control frames are small, do not delay them
+        socket.setTcpNoDelay(true);
+        inputStream = socket.getInputStream();
+        outputStream = socket.getOutputStream();
+    }
+
+    /**
+     * @return the payloads of the control frames received (the frames of other channels are skipped)
+     */
+    public InputStream getControlInputStream() {
+        return controlInputStream;
+    }
+
+    /**
+     * @return a stream sending each write as a single control frame, ahead of the pending video chunks
+     */
+    public OutputStream getControlOutputStream() {
+        return controlOutputStream;
+    }
+
+    /**
+     * Send a video packet, preceded by its frame meta header if {@code header} is not null, split into chunks.
+     * <p>
+     * The buffers are consumed.
+     */
+    public void writeVideo(ByteBuffer header, ByteBuffer payload) throws IOException {
+        writeLock.lock();
+        try {
+            while ((header != null && header.hasRemaining()) || payload.hasRemaining()) {
+                videoFrameBuffer.clear();
+                videoFrameBuffer.position(FRAME_HEADER_LENGTH);
+                if (header != null) {
+                    put(videoFrameBuffer, header);
+                }
+                put(videoFrameBuffer, payload);
+                int length = videoFrameBuffer.position() - FRAME_HEADER_LENGTH;
+                writeFrameHeader(videoFrame, CHANNEL_VIDEO, length);
+                outputStream.write(videoFrame, 0, FRAME_HEADER_LENGTH + length);
+
+                if (writeLock.hasQueuedThreads()) {
+                    // let the control frames pass
+                    writeLock.unlock();
+                    writeLock.lock();
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeControl(byte[] data, int offset, int len) throws IOException {
+        if (len > controlFrame.length - FRAME_HEADER_LENGTH) {
+            throw new IOException("Control frame too large: " + len);
+        }
+        writeLock.lock();
+        try {
+            writeFrameHeader(controlFrame, CHANNEL_CONTROL, len);
+            System.arraycopy(data, offset, controlFrame, FRAME_HEADER_LENGTH, len);
+            outputStream.write(controlFrame, 0, FRAME_HEADER_LENGTH + len);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Copy as many bytes as possible from {@code src} to {@code dst}.
+     */
+    private static void put(ByteBuffer dst, ByteBuffer src) {
+        int len = Math.min(dst.remaining(), src.remaining());
+        if (len == 0) {
+            return;
+        }
+        int limit = src.limit();
+        src.limit(src.position() + len);
+        dst.put(src);
+        src.limit(limit);
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private static void writeFrameHeader(byte[] frame, int channel, int length) {
+        frame[0] = (byte) channel;
+        frame[1] = (byte) (length >> 24);
+        frame[2] = (byte) (length >> 16);
+        frame[3] = (byte) (length >> 8);
+        frame[4] = (byte) length;
+    }
+
+    private final class ControlOutputStream extends OutputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            writeControl(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeControl(b, off, len);
+        }
+    }
+
+    /**
+     * Only read by the controller thread.
+     */
+    private final class ControlInputStream extends InputStream {
+        private final byte[] header = new byte[FRAME_HEADER_LENGTH];
+        private final byte[] single = new byte[1];
+        private int frameRemaining; // bytes of the current control frame not read yet
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (frameRemaining == 0) {
+                if (!readFrameHeader()) {
+                    return -1;
+                }
+            }
+            int r = inputStream.read(b, off, Math.min(len, frameRemaining));
+            if (r == -1) {
+                throw new EOFException("Multiplexed socket closed in the middle of a frame");
+            }
+            frameRemaining -= r;
+            return r;
+        }
+
+        @Override
+        public int available() throws IOException {
+            // only the bytes of the current frame are known to belong to the control channel
+            return Math.min(frameRemaining, inputStream.available());
+        }
+
+        /**
+         * @return {@code false} on end of stream
+         */
+        @SuppressWarnings("checkstyle:MagicNumber")
+        private boolean readFrameHeader() throws IOException {
+            int r = inputStream.read(header, 0, 1);
+            if (r == -1) {
+                return false;
+            }
+            readFully(header, 1, FRAME_HEADER_LENGTH - 1);
+            int channel = header[0];
+            int length = (header[1] & 0xff) << 24 | (header[2] & 0xff) << 16 | (header[3] & 0xff) << 8 | (header[4] & 0xff);
+            if (length < 0) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            if (channel == CHANNEL_CONTROL) {
+                frameRemaining = length;
+            } else {
+                Ln.w("Unexpected frame on channel " + channel + ", skipped");
+                skipFully(length);
+            }
+            return true;
+        }
+
+        private void readFully(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int r = inputStream.read(b, off, len);
+                if (r == -1) {
+                    throw new EOFException("Multiplexed socket closed in the middle of a frame");
+                }
+                off += r;
+                len -= r;
+            }
+        }
+
+        private void skipFully(long len) throws IOException {
+            while (len > 0) {
+                long s = inputStream.skip(len);
+                if (s <= 0) {
+                    // skip() may return 0 without reaching the end of stream
+                    if (inputStream.read() == -1) {
+                        throw new EOFException("Multiplexed socket closed in the middle of a frame");
+                    }
+                    s = 1;
+                }
+                len -= s;
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.castles.remote.core;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation-free classification of the NAL units of an Annex-B packet (H.264 or H.265), directly on the codec output
+ * buffer.
+ * <p>
+ * The scan stops at the first slice: all the slices of a picture have the same type, and the parameter sets and SEI
+ * come before them. Therefore only the headers are read, whatever the size of the packet.
+ */
+public final class NalParser {
+
+    public static final int SPS = 1;
+    public static final int PPS = 1 << 1;
+    public static final int VPS = 1 << 2;
+    public static final int SEI = 1 << 3;
+    // random access picture (IDR, or any IRAP picture for H.265)
+    public static final int IDR = 1 << 4;
+    public static final int NON_IDR = 1 << 5;
+    // other frames may depend on this packet, so it must not be dropped
+    public static final int REFERENCE = 1 << 6;
+
+    private static final int AVC_NAL_TYPE_SLICE = 1;
+    private static final int AVC_NAL_TYPE_IDR = 5;
+    private static final int AVC_NAL_TYPE_SEI = 6;
+    private static final int AVC_NAL_TYPE_SPS = 7;
+    private static final int AVC_NAL_TYPE_PPS = 8;
+
+    private static final int HEVC_NAL_TYPE_MAX_SUB_LAYER_NON_REF = 14;
+    private static final int HEVC_NAL_TYPE_MIN_IRAP = 16;
+    private static final int HEVC_NAL_TYPE_MAX_IRAP = 23;
+    private static final int HEVC_NAL_TYPE_MAX_VCL = 31;
+    private static final int HEVC_NAL_TYPE_VPS = 32;
+    private static final int HEVC_NAL_TYPE_SPS = 33;
+    private static final int HEVC_NAL_TYPE_PPS = 34;
+    private static final int HEVC_NAL_TYPE_PREFIX_SEI = 39;
+    private static final int HEVC_NAL_TYPE_SUFFIX_SEI = 40;
+
+    private NalParser() {
+        // not instantiable
+    }
+
+    /**
+     * Classify a packet, without changing the buffer position.
+     * <p>
+     * Packets which cannot be classified are considered as reference, so that they are never dropped.
+     *
+     * @param bufferFlags the {@link MediaCodec.BufferInfo} flags, trusted over the bitstream for config and key frames
+     * @return a combination of the flags defined in this class
+     */
+    public static int parse(ByteBuffer buffer, int bufferFlags, VideoCodec codec) {
+        int result = 0;
+        int limit = buffer.limit();
+        int i = buffer.position();
+        boolean slice = false;
+        while (!slice && (i = findNalUnit(buffer, i, limit)) != -1) {
+            int nalFlags = codec == VideoCodec.H265 ? classifyHevc(buffer.get(i)) : classifyAvc(buffer.get(i));
+            result |= nalFlags;
+            slice = (nalFlags & (IDR | NON_IDR)) != 0;
+        }
+        if (!slice || (bufferFlags & (MediaCodec.BUFFER_FLAG_CODEC_CONFIG | MediaCodec.BUFFER_FLAG_KEY_FRAME)) != 0) {
+            result |= REFERENCE;
+        }
+        return result;
+    }
+
+    public static boolean isReference(int nalFlags) {
+        return (nalFlags & REFERENCE) != 0;
+    }
+
+    /**
+     * Find the next 00 00 01 start code (the 4-byte form ends with the same 3 bytes).
+     *
+     * @return the index of the NAL unit header following the start code, or -1 if none
+     */
+    @SuppressWarnings("checkstyle:MagicNumber")
+    static int findNalUnit(ByteBuffer buffer, int from, int limit) {
+        int i = from;
+        // the header byte must be available
+        while (i + 3 < limit) {
+            int b2 = buffer.get(i + 2);
+            if (b2 != 0 && b2 != 1) {
+                // no start code can include the byte at i + 2
+                i += 3;
+            } else if (buffer.get(i + 1) != 0) {
+                i += 2;
+            } else if (buffer.get(i) != 0 || b2 != 1) {
+                ++i;
+            } else {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private static int classifyAvc(byte header) {
+        int nalType = header & 0x1f;
+        // nal_ref_idc is 0 for non-reference pictures
+        boolean reference = (header & 0x60) != 0;
+        switch (nalType) {
+            case AVC_NAL_TYPE_SLICE:
+                return NON_IDR | (reference ? REFERENCE : 0);
+            case AVC_NAL_TYPE_IDR:
+                return IDR | REFERENCE;
+            case AVC_NAL_TYPE_SEI:
+                return SEI;
+            case AVC_NAL_TYPE_SPS:
+                return SPS;
+            case AVC_NAL_TYPE_PPS:
+                return PPS;
+            default:
+                return 0;
+        }
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private static int classifyHevc(byte header) {
+        int nalType = (header >> 1) & 0x3f;
+        if (nalType <= HEVC_NAL_TYPE_MAX_VCL) {
+            if (nalType >= HEVC_NAL_TYPE_MIN_IRAP && nalType <= HEVC_NAL_TYPE_MAX_IRAP) {
+                return IDR | REFERENCE;
+            }
+            // sub-layer non-reference pictures have an even type (TRAIL_N, TSA_N, ...)
+            boolean reference = nalType > HEVC_NAL_TYPE_MAX_SUB_LAYER_NON_REF || (nalType & 1) != 0;
+            return NON_IDR | (reference ? REFERENCE : 0);
+        }
+        switch (nalType) {
+            case HEVC_NAL_TYPE_VPS:
+                return VPS;
+            case HEVC_NAL_TYPE_SPS:
+                return SPS;
+            case HEVC_NAL_TYPE_PPS:
+                return PPS;
+            case HEVC_NAL_TYPE_PREFIX_SEI:
+            case HEVC_NAL_TYPE_SUFFIX_SEI:
+                return SEI;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.castles.remote.core;
+
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.SystemClock;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Track the Wi-Fi networks from the {@link ConnectivityManager} callbacks, instead of polling their state.
+ * <p>
+ * The waiting methods block without any timeout while there is no network, so that nothing wakes up the device while
+ * it is offline.
+ */
+public final class NetworkMonitor {
+
+    private final ConnectivityManager connectivityManager;
+    private final Set<Network> networks = new HashSet<>();
+    private int generation; // incremented on every change
+
+    private final ConnectivityManager.NetworkCallback callback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(Network network) {
+            synchronized (NetworkMonitor.this) {
+                if (networks.add(network)) {
+                    onChanged("Wi-Fi network available");
+                }
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            synchronized (NetworkMonitor.this) {
+                if (networks.remove(network)) {
+                    onChanged("Wi-Fi network lost");
+                }
+            }
+        }
+    };
+
+    public NetworkMonitor(ConnectivityManager connectivityManager) {
+        this.connectivityManager = connectivityManager;
+    }
+
+    /**
+     * Start receiving the callbacks. The networks already available are notified immediately.
+     */
+    public void start() {
+        // no internet capability required, the agent is typically on the local network
+        NetworkRequest request = new NetworkRequest.Builder().addTransportType(NetworkCapabilities.TRANSPORT_WIFI).build();
+        connectivityManager.registerNetworkCallback(request, callback);
+    }
+
+    public void stop() {
+        connectivityManager.unregisterNetworkCallback(callback);
+    }
+
+    private void onChanged(String message) {
+        // only log the transitions
+        Ln.i(message + " (" + networks.size() + " connected)");
+        ++generation;
+        notifyAll();
+    }
+
+    public synchronized boolean isConnected() {
+        return !networks.isEmpty();
+    }
+
+    /**
+     * Block (without any periodic wakeup) until a Wi-Fi network is available.
+     */
+    public synchronized void awaitConnected() throws InterruptedException {
+        while (networks.isEmpty()) {
+            wait();
+        }
+    }
+
+    /**
+     * Wait for the given delay, or until a network becomes available or is lost, whichever comes first.
+     */
+    public synchronized void awaitChange(long delay) throws InterruptedException {
+        int initialGeneration = generation;
+        long deadline = SystemClock.uptimeMillis() + delay;
+        long remaining = delay;
+        while (generation == initialGeneration && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - SystemClock.uptimeMillis();
+        }
+    }
+}
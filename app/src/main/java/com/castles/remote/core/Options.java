@@ -1,14 +1,38 @@
 package com.castles.remote.core;
 
+import android.graphics.Bitmap;
 import android.graphics.Rect;
 
+import java.util.List;
+
 public class Options {
     private int maxSize;
+    private int displayId; // 0 for the default display
     private int bitRate;
     private boolean tunnelForward;
+    private boolean multiplexed; // carry the video and the control messages over a single socket
+    private int rtpPort; // UDP port of the client to send the video over RTP, 0 for TCP
+    private int rtpFecGroupSize = 8; // max media packets per XOR parity packet (Reed-Solomon is not supported), 0 to disable FEC
+    private int sessionGracePeriod; // ms to keep the stream alive after a disconnection, 0 to disable session resumption
     private Rect crop;
     private boolean sendFrameMeta; // send PTS so that the client may record properly
+    private boolean frameMetaFlags; // tag the packet types in the high bits of the PTS
     private boolean control;
+    private boolean asyncEncoding = true; // receive the encoder output from callbacks instead of a dequeue loop
+    private boolean adaptiveBitRate; // adapt the bitrate to the socket backpressure
+    private int minBitRate; // 0 for bitRate / 4
+    private int maxBitRate; // 0 for bitRate * 2
+    private int maxFps; // 0 for no limit
+    private boolean idleMode; // lower the refresh rate while the screen is static
+    private EncoderProfile encoderProfile; // null to keep the encoder defaults
+    private List<VideoCodec> videoCodecs; // decodable by the client, by order of preference (null if not announced)
+    private String recordDir; // null for no local recording
+    private long recordSegmentSize; // bytes, 0 for the default
+    private int recordSegmentDuration; // seconds, 0 for the default
+    private int snapshotInterval; // ms, 0 to stream the video instead of snapshots
+    private int snapshotQuality; // 0 for the default
+    private int snapshotMaxSize = 480; // replaces maxSize in snapshot mode
+    private Bitmap.CompressFormat snapshotFormat = Bitmap.CompressFormat.JPEG;
 
     public int getMaxSize() {
         return maxSize;
@@ -34,6 +58,38 @@ public class Options {
         this.tunnelForward = tunnelForward;
     }
 
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    public void setMultiplexed(boolean multiplexed) {
+        this.multiplexed = multiplexed;
+    }
+
+    public int getRtpPort() {
+        return rtpPort;
+    }
+
+    public void setRtpPort(int rtpPort) {
+        this.rtpPort = rtpPort;
+    }
+
+    public int getRtpFecGroupSize() {
+        return rtpFecGroupSize;
+    }
+
+    public void setRtpFecGroupSize(int rtpFecGroupSize) {
+        this.rtpFecGroupSize = rtpFecGroupSize;
+    }
+
+    public int getSessionGracePeriod() {
+        return sessionGracePeriod;
+    }
+
+    public void setSessionGracePeriod(int sessionGracePeriod) {
+        this.sessionGracePeriod = sessionGracePeriod;
+    }
+
     public Rect getCrop() {
         return crop;
     }
@@ -50,6 +106,14 @@ public class Options {
         this.sendFrameMeta = sendFrameMeta;
     }
 
+    public boolean getFrameMetaFlags() {
+        return frameMetaFlags;
+    }
+
+    public void setFrameMetaFlags(boolean frameMetaFlags) {
+        this.frameMetaFlags = frameMetaFlags;
+    }
+
     public boolean getControl() {
         return control;
     }
@@ -57,4 +121,132 @@ public class Options {
     public void setControl(boolean control) {
         this.control = control;
     }
+
+    public boolean isAsyncEncoding() {
+        return asyncEncoding;
+    }
+
+    public void setAsyncEncoding(boolean asyncEncoding) {
+        this.asyncEncoding = asyncEncoding;
+    }
+
+    public boolean isAdaptiveBitRate() {
+        return adaptiveBitRate;
+    }
+
+    public void setAdaptiveBitRate(boolean adaptiveBitRate) {
+        this.adaptiveBitRate = adaptiveBitRate;
+    }
+
+    public int getMinBitRate() {
+        return minBitRate;
+    }
+
+    public void setMinBitRate(int minBitRate) {
+        this.minBitRate = minBitRate;
+    }
+
+    public int getMaxBitRate() {
+        return maxBitRate;
+    }
+
+    public void setMaxBitRate(int maxBitRate) {
+        this.maxBitRate = maxBitRate;
+    }
+
+    public List<VideoCodec> getVideoCodecs() {
+        return videoCodecs;
+    }
+
+    public void setVideoCodecs(List<VideoCodec> videoCodecs) {
+        this.videoCodecs = videoCodecs;
+    }
+
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    public void setMaxFps(int maxFps) {
+        this.maxFps = maxFps;
+    }
+
+    public boolean isIdleMode() {
+        return idleMode;
+    }
+
+    public void setIdleMode(boolean idleMode) {
+        this.idleMode = idleMode;
+    }
+
+    public EncoderProfile getEncoderProfile() {
+        return encoderProfile;
+    }
+
+    public void setEncoderProfile(EncoderProfile encoderProfile) {
+        this.encoderProfile = encoderProfile;
+    }
+
+    public String getRecordDir() {
+        return recordDir;
+    }
+
+    public void setRecordDir(String recordDir) {
+        this.recordDir = recordDir;
+    }
+
+    public long getRecordSegmentSize() {
+        return recordSegmentSize;
+    }
+
+    public void setRecordSegmentSize(long recordSegmentSize) {
+        this.recordSegmentSize = recordSegmentSize;
+    }
+
+    public int getRecordSegmentDuration() {
+        return recordSegmentDuration;
+    }
+
+    public void setRecordSegmentDuration(int recordSegmentDuration) {
+        this.recordSegmentDuration = recordSegmentDuration;
+    }
+
+    public int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    public void setSnapshotInterval(int snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    public int getSnapshotQuality() {
+        return snapshotQuality;
+    }
+
+    public void setSnapshotQuality(int snapshotQuality) {
+        this.snapshotQuality = snapshotQuality;
+    }
+
+    public int getSnapshotMaxSize() {
+        return snapshotMaxSize;
+    }
+
+    public void setSnapshotMaxSize(int snapshotMaxSize) {
+        this.snapshotMaxSize = snapshotMaxSize;
+    }
+
+    public Bitmap.CompressFormat getSnapshotFormat() {
+        return snapshotFormat;
+    }
+
+    public void setSnapshotFormat(Bitmap.CompressFormat snapshotFormat) {
+        this.snapshotFormat = snapshotFormat;
+    }
+
+    public int getDisplayId() {
+        return displayId;
+    }
+
+    public void setDisplayId(int displayId) {
+        this.displayId = displayId;
+    }
 }
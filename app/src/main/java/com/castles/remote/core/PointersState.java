@@ -0,0 +1,114 @@
+package com.castles.remote.core;
+
+import android.view.MotionEvent;
+
+/**
+ * Fixed-capacity table of the pointers currently down, in the order expected by {@link MotionEvent} (the pointer index).
+ * <p>
+ * The pointers are preallocated and reused, so that tracking a new finger costs no allocation.
+ */
+public final class PointersState {
+
+    public static final int MAX_POINTERS = 10;
+
+    public static final class Pointer {
+        // the id provided by the client
+        private long id;
+        // the id of the pointer in the MotionEvent, the smallest one not in use
+        private int localId;
+        private int x;
+        private int y;
+        private float pressure;
+        private boolean up;
+
+        public void set(int x, int y, float pressure, boolean up) {
+            this.x = x;
+            this.y = y;
+            this.pressure = pressure;
+            this.up = up;
+        }
+    }
+
+    private final Pointer[] pointers = new Pointer[MAX_POINTERS];
+    private int count;
+
+    public PointersState() {
+        for (int i = 0; i < MAX_POINTERS; ++i) {
+            pointers[i] = new Pointer();
+        }
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public Pointer get(int index) {
+        return pointers[index];
+    }
+
+    /**
+     * @param create whether to add the pointer if it is not down yet
+     * @return the index of the pointer, or -1 if it is unknown (and not created) or if the table is full
+     */
+    public int getPointerIndex(long id, boolean create) {
+        for (int i = 0; i < count; ++i) {
+            if (pointers[i].id == id) {
+                return i;
+            }
+        }
+        if (!create || count == MAX_POINTERS) {
+            return -1;
+        }
+        Pointer pointer = pointers[count];
+        pointer.id = id;
+        pointer.localId = nextUnusedLocalId();
+        pointer.up = false;
+        return count++;
+    }
+
+    private int nextUnusedLocalId() {
+        int localId = 0;
+        // at most MAX_POINTERS iterations of a tiny loop
+        for (int i = 0; i < count; ++i) {
+            if (pointers[i].localId == localId) {
+                ++localId;
+                i = -1;
+            }
+        }
+        return localId;
+    }
+
+    /**
+     * Write the current pointers to the arrays (of at least {@link #MAX_POINTERS} elements), then remove the pointers
+     * which are up.
+     *
+     * @return the number of pointers written, to pass as the MotionEvent pointer count
+     */
+    public int update(MotionEvent.PointerProperties[] props, MotionEvent.PointerCoords[] coords) {
+        int written = count;
+        for (int i = 0; i < written; ++i) {
+            Pointer pointer = pointers[i];
+            props[i].id = pointer.localId;
+            props[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+
+            MotionEvent.PointerCoords c = coords[i];
+            c.clear();
+            c.x = pointer.x;
+            c.y = pointer.y;
+            c.pressure = pointer.pressure;
+            c.size = 1;
+        }
+
+        // remove the pointers which are up, keeping the order of the others (swap the instances, never allocate)
+        int j = 0;
+        for (int i = 0; i < written; ++i) {
+            Pointer pointer = pointers[i];
+            if (!pointer.up) {
+                pointers[i] = pointers[j];
+                pointers[j++] = pointer;
+            }
+        }
+        count = j;
+        return written;
+    }
+}
@@ -0,0 +1,190 @@
+package com.castles.remote.core;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Record the encoded stream to MP4 files on the device storage, without a second encoding.
+ * <p>
+ * The packets are copied to a bounded queue, written to the muxer by a dedicated thread, so that a slow storage never
+ * blocks the live stream: on overflow, frames are dropped until the next key frame.
+ * <p>
+ * The recording is split into segments. A new segment is started on the first key frame after the current one exceeds
+ * its maximum size or duration, or after the output format changes (a MediaMuxer track format is immutable).
+ */
+public final class Recorder {
+
+    private static final int PACKET_QUEUE_CAPACITY = 32; // packets
+    private static final int PACKET_QUEUE_MAX_BYTES = 8 * 1024 * 1024;
+
+    private static final long DEFAULT_SEGMENT_SIZE = 100 * 1024 * 1024; // bytes
+    private static final int DEFAULT_SEGMENT_DURATION = 10 * 60; // seconds
+
+    private static final int MICROSECONDS_IN_ONE_SECOND = 1_000_000;
+
+    private final File directory;
+    private final long maxSegmentSize;
+    private final long maxSegmentDurationUs;
+    private final VideoPacketQueue packetQueue = new VideoPacketQueue(PACKET_QUEUE_CAPACITY, PACKET_QUEUE_MAX_BYTES);
+    // output formats not yet associated to a config packet by the writer thread
+    private final ArrayDeque<MediaFormat> pendingFormats = new ArrayDeque<>();
+
+    // accessed only from the writer thread
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private MediaFormat format; // the format for the next segment
+    private boolean formatChanged;
+    private MediaMuxer muxer; // null if no segment is open
+    private int trackIndex;
+    private long segmentStartUs;
+    private long segmentSize;
+    private String sessionName;
+    private int segmentIndex;
+
+    private Thread thread;
+
+    /**
+     * @param maxSegmentSize     the maximum size of a segment in bytes, 0 for the default
+     * @param maxSegmentDuration the maximum duration of a segment in seconds, 0 for the default
+     */
+    public Recorder(String directory, long maxSegmentSize, int maxSegmentDuration) {
+        this.directory = new File(directory);
+        this.maxSegmentSize = maxSegmentSize > 0 ? maxSegmentSize : DEFAULT_SEGMENT_SIZE;
+        this.maxSegmentDurationUs = (long) (maxSegmentDuration > 0 ? maxSegmentDuration : DEFAULT_SEGMENT_DURATION)
+                * MICROSECONDS_IN_ONE_SECOND;
+    }
+
+    public void start() {
+        sessionName = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        packetQueue.reset();
+        // a segment must start with a key frame
+        packetQueue.dropUntilKeyFrame();
+        thread = new Thread(this::run, "Recorder");
+        thread.start();
+    }
+
+    /**
+     * Stop the writer thread and finalize the current segment.
+     */
+    public void stop() {
+        packetQueue.stop();
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    /**
+     * Notify the new output format of the encoder, before its codec config packet is offered.
+     */
+    public void onOutputFormatChanged(MediaFormat format) {
+        synchronized (pendingFormats) {
+            pendingFormats.add(format);
+        }
+    }
+
+    /**
+     * Copy an encoded packet to the recording queue, on the thread receiving the encoder output.
+     *
+     * @return one of the {@link VideoPacketQueue} {@code OFFER_*} constants
+     */
+    public int offer(ByteBuffer codecBuffer, MediaCodec.BufferInfo bufferInfo, int nalFlags) {
+        return packetQueue.offer(codecBuffer, bufferInfo.presentationTimeUs, bufferInfo.flags, nalFlags);
+    }
+
+    private void run() {
+        try {
+            VideoPacket packet;
+            while ((packet = packetQueue.take()) != null) {
+                try {
+                    write(packet);
+                } finally {
+                    packetQueue.recycle(packet);
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (IOException | RuntimeException e) {
+            Ln.e("Recording failed", e);
+            packetQueue.stop();
+        } finally {
+            closeSegment();
+        }
+    }
+
+    private void write(VideoPacket packet) throws IOException {
+        if (packet.isConfig()) {
+            // the config is passed to the muxer through the csd buffers of the output format
+            MediaFormat newFormat;
+            synchronized (pendingFormats) {
+                newFormat = pendingFormats.poll();
+            }
+            if (newFormat != null) {
+                format = newFormat;
+                formatChanged = true;
+            }
+            return;
+        }
+
+        long ptsUs = packet.getPresentationTimeUs();
+        if (packet.isKeyFrame() && format != null && (muxer == null || formatChanged || isSegmentFull(ptsUs))) {
+            closeSegment();
+            openSegment(ptsUs);
+        }
+        if (muxer == null) {
+            // waiting for the output format
+            return;
+        }
+
+        bufferInfo.set(0, packet.getSize(), ptsUs, packet.getFlags());
+        muxer.writeSampleData(trackIndex, packet.getData(), bufferInfo);
+        segmentSize += packet.getSize();
+    }
+
+    private boolean isSegmentFull(long ptsUs) {
+        return segmentSize >= maxSegmentSize || ptsUs - segmentStartUs >= maxSegmentDurationUs;
+    }
+
+    private void openSegment(long ptsUs) throws IOException {
+        File file = new File(directory, "castle-remote-" + sessionName + "-" + segmentIndex++ + ".mp4");
+        MediaMuxer newMuxer = new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        try {
+            trackIndex = newMuxer.addTrack(format);
+            newMuxer.start();
+        } catch (RuntimeException e) {
+            newMuxer.release();
+            throw e;
+        }
+        muxer = newMuxer;
+        formatChanged = false;
+        segmentStartUs = ptsUs;
+        segmentSize = 0;
+        Ln.i("Recording to " + file);
+    }
+
+    private void closeSegment() {
+        if (muxer != null) {
+            try {
+                muxer.stop();
+            } catch (IllegalStateException e) {
+                // no sample has been written
+                Ln.w("Could not finalize the recording segment: " + e.getMessage());
+            } finally {
+                muxer.release();
+                muxer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.castles.remote.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Video transport over RTP/UDP, so that a lost packet does not stall the following ones (TCP head-of-line blocking).
+ * <p>
+ * The NAL units are packetized as single NAL unit packets or fragmentation units (RFC 6184 for H.264, RFC 7798 for
+ * H.265). Losses are repaired by:
+ * <ul>
+ * <li>an XOR parity packet every {@code fecGroupSize} media packets, and after the last packet of each access unit
+ * (payload type {@link #PAYLOAD_TYPE_FEC}, with its own sequence numbers), which recovers one lost packet per group
+ * without any round trip;</li>
+ * <li>retransmission on RTCP generic NACK (RFC 4585), only for the packets of key frames and parameter sets: the other
+ * frames are obsolete by the time they would arrive.</li>
+ * </ul>
+ * The FEC payload is: base sequence number (u16), packet count (u8), reserved (u8), XOR of the packet lengths (u16), XOR
+ * of the whole media packets (RTP header included), zero-padded to the longest one.
+ * <p>
+ * Only XOR parity is implemented. Reed-Solomon FEC, which would recover several losses per group, is deferred: the
+ * reserved byte of the FEC header is left to identify the scheme. Meanwhile, multiple losses in a key frame group are
+ * repaired by NACK.
+ */
+public final class RtpSender implements Closeable {
+
+    public static final int PAYLOAD_TYPE_VIDEO = 96;
+    public static final int PAYLOAD_TYPE_FEC = 127;
+
+    private static final int RTP_VERSION = 2;
+    private static final int RTP_HEADER_LENGTH = 12;
+    private static final int FEC_HEADER_LENGTH = 6;
+    // leave room for the FEC header and the IP/UDP headers below a 1280-byte path MTU
+    private static final int MAX_PACKET_SIZE = 1200;
+    private static final int CLOCK_RATE = 90000;
+    private static final int SEND_BUFFER_SIZE = 1024 * 1024;
+
+    private static final int RTCP_TYPE_FEEDBACK = 205;
+    private static final int RTCP_FMT_NACK = 1;
+    private static final int HISTORY_SIZE = 1024; // packets
+
+    private static final int AVC_NAL_TYPE_FU_A = 28;
+    private static final int HEVC_NAL_TYPE_FU = 49;
+    private static final int FU_START = 0x80;
+    private static final int FU_END = 0x40;
+
+    private static final int RETRANSMITTED_NAL_FLAGS = NalParser.IDR | NalParser.SPS | NalParser.PPS | NalParser.VPS;
+
+    private final DatagramChannel channel;
+    private final VideoCodec codec;
+    private final int fecGroupSize;
+    private final int ssrc = new Random().nextInt();
+
+    // only accessed by the sending thread
+    private final ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
+    private int sequenceNumber;
+    private int lastTimestamp;
+
+    private final byte[] fecParity = new byte[MAX_PACKET_SIZE];
+    private final ByteBuffer fecPacket = ByteBuffer.allocate(RTP_HEADER_LENGTH + FEC_HEADER_LENGTH + MAX_PACKET_SIZE);
+    private int fecSequenceNumber;
+    private int fecCount;
+    private int fecBaseSequenceNumber;
+    private int fecLengthXor;
+    private int fecMaxLength;
+
+    // accessed by the sending thread and by the NACK thread, under the history lock
+    private final byte[][] history = new byte[HISTORY_SIZE][MAX_PACKET_SIZE];
+    private final int[] historyLengths = new int[HISTORY_SIZE];
+    private final int[] historySequenceNumbers = new int[HISTORY_SIZE];
+    private final ByteBuffer retransmitPacket = ByteBuffer.allocate(MAX_PACKET_SIZE);
+
+    private final Thread nackThread;
+
+    // the client port may reject the packets repeatedly (a successful write does not mean it is reachable again)
+    private volatile boolean unreachableLogged;
+
+    /**
+     * @param fecGroupSize the number of media packets protected by one parity packet, or 0 to disable FEC
+     */
+    public RtpSender(InetAddress address, int port, VideoCodec codec, int fecGroupSize) throws IOException {
+        this.codec = codec;
+        this.fecGroupSize = fecGroupSize;
+        channel = DatagramChannel.open();
+        // a key frame is sent as a burst of packets
+        channel.socket().setSendBufferSize(SEND_BUFFER_SIZE);
+        channel.connect(new InetSocketAddress(address, port));
+        for (int i = 0; i < HISTORY_SIZE; ++i) {
+            historySequenceNumbers[i] = -1;
+        }
+        nackThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiveNacks();
+            }
+        }, "RtpNack");
+        nackThread.start();
+        Ln.i("RTP video transport to " + address.getHostAddress() + ":" + port + (fecGroupSize > 0 ? ", FEC 1/" + fecGroupSize : ""));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        nackThread.interrupt();
+    }
+
+    /**
+     * Packetize an Annex-B packet, on the sending thread. The buffer is consumed.
+     *
+     * @param ptsUs the PTS relative to the start of the stream, or -1 for a config packet (sent with the timestamp of
+     *              the last frame)
+     */
+    public void send(ByteBuffer payload, long ptsUs, int nalFlags) throws IOException {
+        int timestamp = ptsUs >= 0 ? (int) (ptsUs * CLOCK_RATE / 1_000_000) : lastTimestamp;
+        lastTimestamp = timestamp;
+        boolean retransmittable = (nalFlags & RETRANSMITTED_NAL_FLAGS) != 0;
+
+        int limit = payload.limit();
+        int nal = NalParser.findNalUnit(payload, payload.position(), limit);
+        while (nal != -1) {
+            int next = NalParser.findNalUnit(payload, nal, limit);
+            // the NAL unit ends before the next start code (and the leading zero of a 4-byte start code)
+            int end = next != -1 ? next - 3 : limit;
+            while (end > nal + 1 && payload.get(end - 1) == 0) {
+                --end;
+            }
+            // the marker bit is set on the last packet of an access unit (but not on the parameter sets)
+            boolean lastNal = next == -1 && ptsUs >= 0;
+            sendNalUnit(payload, nal, end, timestamp, lastNal, retransmittable);
+            nal = next;
+        }
+        payload.position(limit);
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private void sendNalUnit(ByteBuffer buffer, int start, int end, int timestamp, boolean marker, boolean retransmittable)
+            throws IOException {
+        int size = end - start;
+        if (size <= MAX_PACKET_SIZE - RTP_HEADER_LENGTH) {
+            // single NAL unit packet
+            startPacket(timestamp, marker);
+            put(buffer, start, size);
+            sendPacket(retransmittable, marker);
+            return;
+        }
+
+        // fragmentation units: the NAL unit header is replaced by the FU headers in each fragment
+        int nalHeaderLength = codec == VideoCodec.H265 ? 2 : 1;
+        int h0 = buffer.get(start) & 0xff;
+        int fuHeaderType;
+        int offset = start + nalHeaderLength;
+        while (offset < end) {
+            int fuHeaderLength = nalHeaderLength + 1;
+            int len = Math.min(end - offset, MAX_PACKET_SIZE - RTP_HEADER_LENGTH - fuHeaderLength);
+            boolean first = offset == start + nalHeaderLength;
+            boolean last = offset + len == end;
+            startPacket(timestamp, marker && last);
+            if (codec == VideoCodec.H265) {
+                // PayloadHdr: the type is replaced, the layer id and temporal id are kept
+                packet.put((byte) ((h0 & 0x81) | (HEVC_NAL_TYPE_FU << 1)));
+                packet.put(buffer.get(start + 1));
+                fuHeaderType = (h0 >> 1) & 0x3f;
+            } else {
+                // FU indicator: F and NRI of the NAL unit
+                packet.put((byte) ((h0 & 0xe0) | AVC_NAL_TYPE_FU_A));
+                fuHeaderType = h0 & 0x1f;
+            }
+            packet.put((byte) ((first ? FU_START : 0) | (last ? FU_END : 0) | fuHeaderType));
+            put(buffer, offset, len);
+            sendPacket(retransmittable, marker && last);
+            offset += len;
+        }
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private void startPacket(int timestamp, boolean marker) {
+        packet.clear();
+        packet.put((byte) (RTP_VERSION << 6));
+        packet.put((byte) ((marker ? 0x80 : 0) | PAYLOAD_TYPE_VIDEO));
+        packet.putShort((short) sequenceNumber);
+        packet.putInt(timestamp);
+        packet.putInt(ssrc);
+    }
+
+    private void put(ByteBuffer buffer, int offset, int len) {
+        int limit = buffer.limit();
+        buffer.limit(offset + len).position(offset);
+        packet.put(buffer);
+        buffer.limit(limit);
+    }
+
+    private void sendPacket(boolean retransmittable, boolean marker) throws IOException {
+        packet.flip();
+        int length = packet.remaining();
+        write(packet);
+
+        if (retransmittable) {
+            synchronized (history) {
+                int index = sequenceNumber % HISTORY_SIZE;
+                System.arraycopy(packet.array(), 0, history[index], 0, length);
+                historyLengths[index] = length;
+                historySequenceNumbers[index] = sequenceNumber;
+            }
+        }
+        if (fecGroupSize > 0) {
+            addToFecGroup(length, marker);
+        }
+        sequenceNumber = (sequenceNumber + 1) & 0xffff;
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private void addToFecGroup(int length, boolean marker) throws IOException {
+        byte[] data = packet.array();
+        if (fecCount == 0) {
+            fecBaseSequenceNumber = sequenceNumber;
+            System.arraycopy(data, 0, fecParity, 0, length);
+            fecMaxLength = length;
+            fecLengthXor = length;
+        } else {
+            for (int i = 0; i < length; ++i) {
+                fecParity[i] ^= data[i];
+            }
+            fecMaxLength = Math.max(fecMaxLength, length);
+            fecLengthXor ^= length;
+        }
+        // a partial group is flushed at the end of the access unit, the next one may come much later (static screen)
+        if (++fecCount < fecGroupSize && !marker) {
+            return;
+        }
+
+        fecPacket.clear();
+        fecPacket.put((byte) (RTP_VERSION << 6));
+        fecPacket.put((byte) PAYLOAD_TYPE_FEC);
+        fecPacket.putShort((short) fecSequenceNumber);
+        // same timestamp as the last protected packet
+        fecPacket.putInt(data[4] << 24 | (data[5] & 0xff) << 16 | (data[6] & 0xff) << 8 | (data[7] & 0xff));
+        fecPacket.putInt(ssrc);
+        fecPacket.putShort((short) fecBaseSequenceNumber);
+        fecPacket.put((byte) fecCount);
+        fecPacket.put((byte) 0);
+        fecPacket.putShort((short) fecLengthXor);
+        fecPacket.put(fecParity, 0, fecMaxLength);
+        fecPacket.flip();
+        write(fecPacket);
+
+        fecSequenceNumber = (fecSequenceNumber + 1) & 0xffff;
+        fecCount = 0;
+        // the next packets are shorter or longer, the remaining bytes must not be xored again
+        Arrays.fill(fecParity, 0, fecMaxLength, (byte) 0);
+    }
+
+    /**
+     * Write a datagram, or drop it if the client port is unreachable (the client may be restarting its receiver).
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        try {
+            channel.write(buffer);
+        } catch (PortUnreachableException e) {
+            // the error reported by ICMP concerns a previous datagram, this one is not sent
+            onPortUnreachable();
+        }
+    }
+
+    private void onPortUnreachable() {
+        if (!unreachableLogged) {
+            unreachableLogged = true;
+            Ln.w("RTP client port unreachable, the packets rejected meanwhile are lost");
+        }
+    }
+
+    private void receiveNacks() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        try {
+            while (true) {
+                buffer.clear();
+                try {
+                    channel.receive(buffer);
+                } catch (PortUnreachableException e) {
+                    // reported on the socket by a previous write, the receiver must keep running
+                    onPortUnreachable();
+                    continue;
+                }
+                buffer.flip();
+                handleRtcp(buffer);
+            }
+        } catch (ClosedChannelException e) {
+            // expected on close (AsynchronousCloseException if closed while receiving)
+        } catch (IOException e) {
+            Ln.w("RTCP receiver stopped: " + e.getMessage());
+        }
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private void handleRtcp(ByteBuffer buffer) throws IOException {
+        // a compound packet may contain several RTCP packets
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int b0 = buffer.get(start) & 0xff;
+            int type = buffer.get(start + 1) & 0xff;
+            int length = ((buffer.getShort(start + 2) & 0xffff) + 1) * 4;
+            if ((b0 >> 6) != RTP_VERSION || length > buffer.remaining()) {
+                Ln.w("Invalid RTCP packet ignored");
+                return;
+            }
+            if (type == RTCP_TYPE_FEEDBACK && (b0 & 0x1f) == RTCP_FMT_NACK) {
+                // header (4), sender SSRC (4), media SSRC (4), then the FCI entries (PID, BLP)
+                for (int i = start + 12; i + 4 <= start + length; i += 4) {
+                    int pid = buffer.getShort(i) & 0xffff;
+                    int blp = buffer.getShort(i + 2) & 0xffff;
+                    retransmit(pid);
+                    for (int bit = 0; bit < 16; ++bit) {
+                        if ((blp & (1 << bit)) != 0) {
+                            retransmit((pid + bit + 1) & 0xffff);
+                        }
+                    }
+                }
+            }
+            buffer.position(start + length);
+        }
+    }
+
+    private void retransmit(int seq) throws IOException {
+        synchronized (history) {
+            int index = seq % HISTORY_SIZE;
+            if (historySequenceNumbers[index] != seq) {
+                // not a packet of a key frame, or too old
+                return;
+            }
+            retransmitPacket.clear();
+            retransmitPacket.put(history[index], 0, historyLengths[index]);
+            retransmitPacket.flip();
+            write(retransmitPacket);
+        }
+    }
+}
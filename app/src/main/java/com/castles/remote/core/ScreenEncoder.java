@@ -5,17 +5,23 @@ import com.castles.remote.core.wrappers.SurfaceControl;
 import android.graphics.Rect;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.view.Surface;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ScreenEncoder implements Device.RotationListener {
+public class ScreenEncoder implements Device.ScreenInfoListener {
 
     private static final int DEFAULT_FRAME_RATE = 60; // fps
     private static final int DEFAULT_I_FRAME_INTERVAL = 10; // seconds
@@ -23,151 +29,587 @@ public class ScreenEncoder implements Device.RotationListener {
     private static final int REPEAT_FRAME_DELAY = 6; // repeat after 6 frames
 
     private static final int MICROSECONDS_IN_ONE_SECOND = 1_000_000;
-    private static final int NO_PTS = -1;
 
-    private final AtomicBoolean rotationChanged = new AtomicBoolean();
-    private final ByteBuffer headerBuffer = ByteBuffer.allocate(12);
+    // so that the synchronous encoding loop regularly checks whether it must stop
+    private static final long DEQUEUE_TIMEOUT_US = 100_000; // 100 ms
+
+    private static final long MIN_KEY_FRAME_REQUEST_INTERVAL_NS = 500_000_000L; // 500 ms
+
+    private final AtomicBoolean screenInfoChanged = new AtomicBoolean();
+    private final AtomicLong lastKeyFrameRequestNs = new AtomicLong();
+    private final EncoderStats stats = new EncoderStats();
+    private final VideoBroadcaster broadcaster = new VideoBroadcaster(this);
+    private final AtomicLong reconfigureStartNs = new AtomicLong(); // 0 if no reconfiguration is in progress
 
     private int bitRate;
     private int frameRate;
     private int iFrameInterval;
-    private boolean sendFrameMeta;
-    private long ptsOrigin;
+    private boolean asyncEncoding;
+    private int maxFps; // 0 for no limit
+    private boolean idleMode;
+    private EncoderProfile encoderProfile; // null to keep the encoder defaults
+    private volatile IdleMonitor idleMonitor; // null if not streaming in idle mode
+    private volatile FramePacer framePacer; // null if the frame rate is not capped in software
+    private VideoCodec videoCodec = VideoCodec.H264;
+    private String encoderName; // null to let MediaCodec select the default encoder
+    private BitrateController bitrateController; // null if the bitrate is fixed
+    private Recorder recorder; // null if the stream is not recorded
+    private volatile boolean stopRequested;
+
+    // written by the codec callback thread
+    private volatile boolean eof;
+    private volatile MediaCodec.CodecException codecError;
 
-    public ScreenEncoder(boolean sendFrameMeta, int bitRate, int frameRate, int iFrameInterval) {
-        this.sendFrameMeta = sendFrameMeta;
+    // the started codec, if any, accessed from the controller thread
+    private volatile MediaCodec runningCodec;
+
+    public ScreenEncoder(int bitRate, int frameRate, int iFrameInterval) {
         this.bitRate = bitRate;
         this.frameRate = frameRate;
         this.iFrameInterval = iFrameInterval;
     }
 
-    public ScreenEncoder(boolean sendFrameMeta, int bitRate) {
-        this(sendFrameMeta, bitRate, DEFAULT_FRAME_RATE, DEFAULT_I_FRAME_INTERVAL);
+    public ScreenEncoder(int bitRate) {
+        this(bitRate, DEFAULT_FRAME_RATE, DEFAULT_I_FRAME_INTERVAL);
+    }
+
+    public ScreenEncoder(Options options) {
+        this(options.getBitRate());
+        this.asyncEncoding = options.isAsyncEncoding();
+        this.maxFps = options.getMaxFps();
+        this.idleMode = options.isIdleMode();
+        this.encoderProfile = options.getEncoderProfile();
+        if (options.isAdaptiveBitRate()) {
+            int minBitRate = options.getMinBitRate() > 0 ? options.getMinBitRate() : bitRate / 4;
+            int maxBitRate = options.getMaxBitRate() > 0 ? options.getMaxBitRate() : bitRate * 2;
+            bitrateController = new BitrateController(bitRate, minBitRate, maxBitRate);
+        }
+        if (options.getRecordDir() != null) {
+            recorder = new Recorder(options.getRecordDir(), options.getRecordSegmentSize(), options.getRecordSegmentDuration());
+        }
+    }
+
+    /**
+     * @return the bitrate controller, to read its metrics, or {@code null} if the bitrate is fixed
+     */
+    public BitrateController getBitrateController() {
+        return bitrateController;
+    }
+
+    public EncoderStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return the stage distributing the encoded packets to the viewers
+     */
+    public VideoBroadcaster getBroadcaster() {
+        return broadcaster;
     }
 
     @Override
-    public void onRotationChanged(int rotation) {
-        rotationChanged.set(true);
+    public void onScreenInfoChanged(ScreenInfo screenInfo) {
+        screenInfoChanged.set(true);
+        wakeUp();
+    }
+
+    /**
+     * Make {@link #streamScreen(Device)} return as soon as possible (typically once the last viewer is gone).
+     */
+    public void stop() {
+        stopRequested = true;
+        wakeUp();
     }
 
-    public boolean consumeRotationChange() {
-        return rotationChanged.getAndSet(false);
+    private synchronized void wakeUp() {
+        notify();
+    }
+
+    public boolean consumeScreenInfoChange() {
+        return screenInfoChanged.getAndSet(false);
+    }
+
+    /**
+     * Ask the running encoder to produce a sync frame as soon as possible, so that a client may recover from a decoder
+     * error (or a late join) without waiting for the next periodic key frame.
+     * <p>
+     * Requests closer than {@link #MIN_KEY_FRAME_REQUEST_INTERVAL_NS} to the previous accepted one are ignored.
+     *
+     * @return {@code true} if the request has been forwarded to the encoder
+     */
+    public boolean requestKeyFrame() {
+        return requestKeyFrame(true);
+    }
+
+    /**
+     * @param rateLimited {@code false} to bypass the rate limit, for a request which must not be lost (a viewer
+     *                    joining the stream)
+     */
+    public boolean requestKeyFrame(boolean rateLimited) {
+        MediaCodec codec = runningCodec;
+        if (codec == null) {
+            return false;
+        }
+        long now = System.nanoTime();
+        long last = lastKeyFrameRequestNs.get();
+        if (rateLimited && last != 0 && now - last < MIN_KEY_FRAME_REQUEST_INTERVAL_NS) {
+            Ln.d("Key frame request ignored (rate limited)");
+            return false;
+        }
+        if (!lastKeyFrameRequestNs.compareAndSet(last, now)) {
+            // a concurrent request has just been accepted
+            return false;
+        }
+        try {
+            requestSyncFrame(codec);
+        } catch (IllegalStateException e) {
+            // the codec is being stopped, the restarted one will start with a key frame anyway
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Notify that an input event has been injected, so that the full frame rate is restored immediately if the
+     * encoder is idle.
+     */
+    public void onInputEvent() {
+        IdleMonitor monitor = idleMonitor;
+        if (monitor != null) {
+            monitor.wakeUp();
+        }
     }
 
     /**
      * 5.录屏和编码
+     * <p>
+     * The encoded packets are passed to the {@link #getBroadcaster() broadcaster}, until {@link #stop()} is called.
      * @param device
-     * @param outputStream
      * @throws IOException
      */
-    public void streamScreen(Device device, OutputStream outputStream) throws IOException {
-        MediaFormat format = createFormat(bitRate, frameRate, iFrameInterval);
-        device.setRotationListener(this);
+    public void streamScreen(Device device) throws IOException {
+        device.addScreenInfoListener(this);
+        boolean softwarePacing = maxFps > 0 && !isMaxFpsSupported();
+        HandlerThread callbackThread = null;
+        Handler callbackHandler = null;
+        if (asyncEncoding || idleMode || softwarePacing) {
+            callbackThread = new HandlerThread("ScreenEncoder");
+            callbackThread.start();
+            callbackHandler = new Handler(callbackThread.getLooper());
+        }
+        // the idle monitor and the frame pacer both suspend the encoder input
+        EncoderInputGate inputGate = idleMode || softwarePacing ? new EncoderInputGate() : null;
+        IdleMonitor monitor = idleMode ? new IdleMonitor(callbackHandler, inputGate) : null;
+        FramePacer pacer = softwarePacing ? new FramePacer(callbackHandler, inputGate, maxFps) : null;
+        if (pacer != null) {
+            Ln.i("Frame rate capped to " + maxFps + " fps by suspending the encoder input");
+        }
+        // 首先通过MediaCodec创建了一个编码器(默认H.264类型)
+        MediaCodec codec = createCodec(videoCodec, encoderName);
+        // 通过反射SurfaceControl创建了一个虚拟显示
+        // the codec and the virtual display are kept across reconfigurations (on rotation or resize), only the codec
+        // configuration, its input surface and the display projection change
+        IBinder display = createDisplay();
+        Surface surface = null;
         boolean alive;
+        if (recorder != null) {
+            recorder.start();
+        }
         try {
             do {
-                // 首先通过MediaCodec创建了一个H.264类型的编码器
-                MediaCodec codec = createCodec();
-                // 通过反射SurfaceControl创建了一个虚拟显示
-                IBinder display = createDisplay();
                 Rect contentRect = device.getScreenInfo().getContentRect();
                 Rect videoRect = device.getScreenInfo().getVideoSize().toRect();
-                setSize(format, videoRect.width(), videoRect.height());
-                configure(codec, format);
+                try {
+                    configure(codec, videoCodec, videoRect.width(), videoRect.height(), callbackHandler);
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    // the encoder may reject the new size (e.g. after a rotation)
+                    String size = videoRect.width() + "x" + videoRect.height();
+                    String failedName = codec.getName();
+                    Ln.w("Encoder " + failedName + " rejected " + size + ": " + e.getMessage());
+                    codec.release();
+                    codec = configureFallbackEncoder(failedName, videoRect.width(), videoRect.height(), callbackHandler);
+                    if (codec == null) {
+                        throw new IOException("No " + videoCodec.getName() + " encoder accepts " + size, e);
+                    }
+                }
+                Surface previousSurface = surface;
                 // 通过createInputSurface()获取编码器的输入Surface
-                Surface surface = codec.createInputSurface();
+                surface = codec.createInputSurface();
                 // 后续将这块Surface的内容作为编码器的输入数据源
-                setDisplaySurface(display, surface, contentRect, videoRect);
+                setDisplaySurface(display, surface, contentRect, videoRect, device.getLayerStack());
+                if (previousSurface != null) {
+                    // only release it once the display does not render to it anymore
+                    previousSurface.release();
+                }
                 codec.start();
+                runningCodec = codec;
+                if (inputGate != null) {
+                    inputGate.start(codec);
+                }
+                if (monitor != null) {
+                    monitor.start();
+                    idleMonitor = monitor;
+                }
+                if (pacer != null) {
+                    pacer.start();
+                    framePacer = pacer;
+                }
                 try {
                     //拿到编码后的数据以及发送
-                    alive = encode(codec, outputStream);
+                    alive = asyncEncoding ? awaitAsync() : encode(codec);
+                    long stopStartNs = System.nanoTime();
                     // do not call stop() on exception, it would trigger an IllegalStateException
                     codec.stop();
+                    if (alive) {
+                        // measured until the first packet of the reconfigured encoder is sent
+                        reconfigureStartNs.set(stopStartNs);
+                    }
                 } finally {
-                    destroyDisplay(display);
-                    codec.release();
-                    surface.release();
+                    runningCodec = null;
+                    if (pacer != null) {
+                        framePacer = null;
+                        pacer.stop();
+                    }
+                    if (monitor != null) {
+                        idleMonitor = null;
+                        monitor.stop();
+                    }
+                    if (inputGate != null) {
+                        inputGate.stop();
+                    }
                 }
             } while (alive);
         } finally {
-            device.setRotationListener(null);
+            device.removeScreenInfoListener(this);
+            if (recorder != null) {
+                recorder.stop();
+            }
+            destroyDisplay(display);
+            if (codec != null) {
+                codec.release();
+            }
+            if (surface != null) {
+                surface.release();
+            }
+            if (callbackThread != null) {
+                callbackThread.quit();
+            }
         }
     }
 
 
-    private boolean encode(MediaCodec codec, OutputStream outputStream) throws IOException {
+    private boolean encode(MediaCodec codec) {
         boolean eof = false;
         MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
 
-        while (!consumeRotationChange() && !eof) {
-            int outputBufferId = codec.dequeueOutputBuffer(bufferInfo, -1);
+        while (!stopRequested && !consumeScreenInfoChange() && !eof) {
+            int outputBufferId = codec.dequeueOutputBuffer(bufferInfo, DEQUEUE_TIMEOUT_US);
+            if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                onOutputFormatChanged(codec.getOutputFormat());
+            }
+            if (outputBufferId < 0) {
+                continue;
+            }
             eof = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
             try {
-                if (consumeRotationChange()) {
+                if (consumeScreenInfoChange()) {
                     // must restart encoding with new size
                     break;
                 }
                 //当首次出现值大于0可以出来控制画面
-                if (outputBufferId >= 0) {
-                    ByteBuffer codecBuffer = codec.getOutputBuffer(outputBufferId);
+                ByteBuffer codecBuffer = codec.getOutputBuffer(outputBufferId);
+                int nalFlags = NalParser.parse(codecBuffer, bufferInfo.flags, videoCodec);
+                onPacket(codecBuffer, bufferInfo);
+                publish(codecBuffer, bufferInfo, nalFlags);
+            } finally {
+                codec.releaseOutputBuffer(outputBufferId, false);
+            }
+        }
 
-                    if (sendFrameMeta) {
-                        writeFrameMeta(outputStream, bufferInfo, codecBuffer.remaining());
-                    }
+        return !eof && !stopRequested;
+    }
+
+    /**
+     * Wait while the {@link EncoderCallback} broadcasts the packets, on the codec callback thread.
+     *
+     * @return {@code true} if the encoding must be restarted (on rotation or resize), {@code false} on end of stream or stop
+     */
+    private synchronized boolean awaitAsync() throws IOException {
+        eof = false;
+        codecError = null;
+        try {
+            while (!stopRequested && !screenInfoChanged.get() && !eof && codecError == null) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding", e);
+        }
+        consumeScreenInfoChange();
+        if (codecError != null) {
+            throw codecError;
+        }
+        return !eof && !stopRequested;
+    }
+
+    /**
+     * Record the stats and feed the idle monitor and the frame pacer, on the thread receiving the encoder output.
+     */
+    private void onPacket(ByteBuffer codecBuffer, MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        boolean keyFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        stats.onPacketEncoded(bufferInfo.presentationTimeUs, codecBuffer.remaining(), keyFrame);
+        IdleMonitor monitor = idleMonitor;
+        if (monitor != null) {
+            monitor.onPacket(codecBuffer.remaining(), keyFrame);
+        }
+        FramePacer pacer = framePacer;
+        if (pacer != null) {
+            pacer.onFrame(bufferInfo.presentationTimeUs);
+        }
+    }
 
-                    IO.writeStreamFully(outputStream, codecBuffer);
+    /**
+     * Pass an encoded packet to the viewers and to the recorder, which both copy it to their own bounded queue.
+     */
+    private void publish(ByteBuffer codecBuffer, MediaCodec.BufferInfo bufferInfo, int nalFlags) {
+        broadcaster.broadcast(codecBuffer, bufferInfo, nalFlags);
+        if (recorder != null && recorder.offer(codecBuffer, bufferInfo, nalFlags) == VideoPacketQueue.OFFER_DROPPED_UNTIL_KEY_FRAME) {
+            Ln.w("Recording too slow, dropping frames until the next key frame");
+            requestKeyFrame();
+        }
+    }
+
+    private void onOutputFormatChanged(MediaFormat format) {
+        if (recorder != null) {
+            recorder.onOutputFormatChanged(format);
+        }
+    }
+
+    /**
+     * Account a packet written to a viewer socket, on its writer thread.
+     *
+     * @param primary whether the viewer drives the bitrate controller (only one viewer does, since the controller is
+     *                not thread-safe)
+     */
+    public void onPacketWritten(long writeTimeNs, int queueDepth, long droppedCount, boolean primary) {
+        stats.onPacketWritten(writeTimeNs);
+        long reconfigureStart = reconfigureStartNs.getAndSet(0);
+        if (reconfigureStart != 0) {
+            long switchTimeMs = (System.nanoTime() - reconfigureStart) / 1_000_000;
+            Ln.i("Encoder reconfigured in " + switchTimeMs + " ms");
+        }
+        MediaCodec codec = runningCodec;
+        if (primary && bitrateController != null && codec != null) {
+            int newBitRate = bitrateController.onPacketWritten(writeTimeNs, queueDepth, droppedCount);
+            if (newBitRate != 0) {
+                try {
+                    setBitRate(codec, newBitRate);
+                } catch (IllegalStateException e) {
+                    // the codec is being stopped, the restarted one will use the new bitrate
                 }
-            } finally {
-                if (outputBufferId >= 0) {
-                    codec.releaseOutputBuffer(outputBufferId, false);
+            }
+        }
+    }
+
+    private static void setBitRate(MediaCodec codec, int bitRate) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        codec.setParameters(params);
+    }
+
+    private static void requestSyncFrame(MediaCodec codec) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        codec.setParameters(params);
+    }
+
+    /**
+     * Select the codec to use, among the ones the client is able to decode (in its order of preference).
+     * <p>
+     * A codec is selected only if a hardware encoder supports it and accepts the configuration for the given video
+     * size. H.264 is always supported, it is used as a fallback.
+     *
+     * @param clientCodecs the codecs announced by the client, or {@code null} if the client did not announce any
+     * @return the selected codec
+     */
+    public VideoCodec negotiateCodec(List<VideoCodec> clientCodecs, Size videoSize) {
+        videoCodec = VideoCodec.H264;
+        encoderName = null;
+        if (clientCodecs != null) {
+            for (VideoCodec candidate : clientCodecs) {
+                String name = findHardwareEncoder(candidate);
+                if (name != null && tryConfigure(candidate, name, videoSize)) {
+                    videoCodec = candidate;
+                    encoderName = name;
+                    break;
                 }
             }
         }
+        Ln.i("Selected video codec: " + videoCodec.getName() + (encoderName != null ? " (" + encoderName + ")" : ""));
+        return videoCodec;
+    }
 
-        return !eof;
+    private static String findHardwareEncoder(VideoCodec videoCodec) {
+        MediaCodecInfo[] codecInfos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        for (MediaCodecInfo codecInfo : codecInfos) {
+            if (codecInfo.isEncoder() && isHardwareAccelerated(codecInfo) && supportsType(codecInfo, videoCodec)) {
+                return codecInfo.getName();
+            }
+        }
+        return null;
     }
 
-    private void writeFrameMeta(OutputStream outputStream, MediaCodec.BufferInfo bufferInfo, int packetSize) throws IOException {
-        headerBuffer.clear();
+    private static boolean isHardwareAccelerated(MediaCodecInfo codecInfo) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return codecInfo.isHardwareAccelerated();
+        }
+        // software codecs provided by the platform
+        String name = codecInfo.getName();
+        return !name.startsWith("OMX.google.") && !name.startsWith("c2.android.");
+    }
 
-        long pts;
-        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-            pts = NO_PTS; // non-media data packet
-        } else {
-            if (ptsOrigin == 0) {
-                ptsOrigin = bufferInfo.presentationTimeUs;
+    private boolean tryConfigure(VideoCodec candidate, String name, Size videoSize) {
+        MediaCodec codec = null;
+        try {
+            codec = MediaCodec.createByCodecName(name);
+            // synchronous mode is enough to check the configuration
+            configure(codec, candidate, videoSize.getWidth(), videoSize.getHeight(), null);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Ln.w("Could not configure encoder " + name + " for " + candidate.getName() + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
+        }
+    }
+
+    /**
+     * Configure another encoder of the current codec, after the selected one rejected the configuration during the
+     * stream.
+     * <p>
+     * Falling back to another codec (like in {@link #negotiateCodec(List, Size)}) is not possible: the client decoder has
+     * been initialized for the codec announced at the start of the session.
+     *
+     * @return the configured encoder, or {@code null} if none accepts the configuration
+     */
+    private MediaCodec configureFallbackEncoder(String failedName, int width, int height, Handler callbackHandler) {
+        MediaCodecInfo[] codecInfos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        for (MediaCodecInfo codecInfo : codecInfos) {
+            if (!codecInfo.isEncoder() || codecInfo.getName().equals(failedName) || !supportsType(codecInfo, videoCodec)) {
+                continue;
+            }
+            String name = codecInfo.getName();
+            MediaCodec codec = null;
+            try {
+                codec = MediaCodec.createByCodecName(name);
+                // the profile settings depend on the capabilities of each encoder
+                configure(codec, videoCodec, width, height, callbackHandler);
+                Ln.i("Fallback to encoder " + name);
+                encoderName = name;
+                return codec;
+            } catch (IOException | RuntimeException e) {
+                Ln.w("Could not configure encoder " + name + ": " + e.getMessage());
+                if (codec != null) {
+                    codec.release();
+                }
             }
-            pts = bufferInfo.presentationTimeUs - ptsOrigin;
         }
+        return null;
+    }
 
-        headerBuffer.putLong(pts);
-        headerBuffer.putInt(packetSize);
-        headerBuffer.flip();
-        IO.writeStreamFully(outputStream, headerBuffer);
+    private static boolean supportsType(MediaCodecInfo codecInfo, VideoCodec videoCodec) {
+        for (String type : codecInfo.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(videoCodec.getMimeType())) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private static MediaCodec createCodec() throws IOException {
-        return MediaCodec.createEncoderByType("video/avc");
+    public VideoCodec getVideoCodec() {
+        return videoCodec;
     }
 
-    private static MediaFormat createFormat(int bitRate, int frameRate, int iFrameInterval) throws IOException {
+    /**
+     * Configure an encoder for the given size. If it rejects the profile settings which cannot be checked against its
+     * capabilities, retry without them.
+     *
+     * @param callbackHandler the handler of the codec callback in asynchronous mode, or {@code null} to configure the
+     *                        codec in synchronous mode
+     */
+    private void configure(MediaCodec codec, VideoCodec codecType, int width, int height, Handler callbackHandler) {
+        try {
+            configure(codec, createFormat(codec, codecType, width, height, true), callbackHandler);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            if (encoderProfile == null) {
+                throw e;
+            }
+            Ln.w("Encoder " + codec.getName() + " rejected the " + encoderProfile.getName()
+                    + " profile, retrying with its checked settings only: " + e.getMessage());
+            // a failed configure() may leave the codec in the error state
+            codec.reset();
+            configure(codec, createFormat(codec, codecType, width, height, false), callbackHandler);
+        }
+    }
+
+    /**
+     * Create the format for a given encoder: the base settings, then the profile settings this encoder supports.
+     */
+    private MediaFormat createFormat(MediaCodec codec, VideoCodec codecType, int width, int height, boolean uncheckedProfileKeys) {
+        MediaFormat format = createFormat(codecType, bitRate, frameRate, iFrameInterval, maxFps);
+        if (encoderProfile != null) {
+            MediaCodecInfo.CodecCapabilities capabilities = codec.getCodecInfo().getCapabilitiesForType(codecType.getMimeType());
+            encoderProfile.apply(format, capabilities, codecType, frameRate, uncheckedProfileKeys);
+        }
+        setSize(format, width, height);
+        if (bitrateController != null) {
+            // keep the bitrate adapted so far
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitrateController.getBitRate());
+        }
+        return format;
+    }
+
+    private static MediaCodec createCodec(VideoCodec videoCodec, String encoderName) throws IOException {
+        if (encoderName != null) {
+            return MediaCodec.createByCodecName(encoderName);
+        }
+        return MediaCodec.createEncoderByType(videoCodec.getMimeType());
+    }
+
+    private static MediaFormat createFormat(VideoCodec videoCodec, int bitRate, int frameRate, int iFrameInterval, int maxFps) {
         MediaFormat format = new MediaFormat();
-        format.setString(MediaFormat.KEY_MIME, "video/avc");
+        format.setString(MediaFormat.KEY_MIME, videoCodec.getMimeType());
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
         format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
         // display the very first frame, and recover from bad quality when no new frames
         format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, MICROSECONDS_IN_ONE_SECOND * REPEAT_FRAME_DELAY / frameRate); // µs
+        if (maxFps > 0 && isMaxFpsSupported()) {
+            // before Android 10, the frame rate is capped by a FramePacer instead (not both, their drops would add up)
+            format.setFloat(MediaFormat.KEY_MAX_FPS_TO_ENCODER, maxFps);
+        }
         return format;
     }
 
-    private static IBinder createDisplay() {
+    private static boolean isMaxFpsSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+    }
+
+    static IBinder createDisplay() {
         return SurfaceControl.createDisplay("CastleRemote", true);
     }
 
-    private static void configure(MediaCodec codec, MediaFormat format) {
+    private void configure(MediaCodec codec, MediaFormat format, Handler callbackHandler) {
+        if (asyncEncoding && callbackHandler != null) {
+            // must be called before configure() (and again after reset())
+            codec.setCallback(new EncoderCallback(), callbackHandler);
+        }
         codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
     }
 
@@ -182,19 +624,65 @@ public class ScreenEncoder implements Device.RotationListener {
      * @param surface
      * @param deviceRect
      * @param displayRect
+     * @param layerStack the layer stack of the captured display
      */
-    private static void setDisplaySurface(IBinder display, Surface surface, Rect deviceRect, Rect displayRect) {
+    static void setDisplaySurface(IBinder display, Surface surface, Rect deviceRect, Rect displayRect, int layerStack) {
         SurfaceControl.openTransaction();
         try {
             SurfaceControl.setDisplaySurface(display, surface);
             SurfaceControl.setDisplayProjection(display, 0, deviceRect, displayRect);
-            SurfaceControl.setDisplayLayerStack(display, 0);
+            SurfaceControl.setDisplayLayerStack(display, layerStack);
         } finally {
             SurfaceControl.closeTransaction();
         }
     }
 
-    private static void destroyDisplay(IBinder display) {
+    static void destroyDisplay(IBinder display) {
         SurfaceControl.destroyDisplay(display);
     }
+
+    /**
+     * Pass the encoded packets to the broadcaster (which copies them) on the codec callback thread.
+     */
+    private final class EncoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // the input is a Surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo bufferInfo) {
+            try {
+                try {
+                    ByteBuffer codecBuffer = codec.getOutputBuffer(index);
+                    if (codecBuffer != null && bufferInfo.size > 0) {
+                        int nalFlags = NalParser.parse(codecBuffer, bufferInfo.flags, videoCodec);
+                        onPacket(codecBuffer, bufferInfo);
+                        publish(codecBuffer, bufferInfo, nalFlags);
+                    }
+                } finally {
+                    codec.releaseOutputBuffer(index, false);
+                }
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    eof = true;
+                    wakeUp();
+                }
+            } catch (IllegalStateException e) {
+                // the codec has been stopped concurrently by the streaming thread, the packet is not needed anymore
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Ln.e("Encoder error", e);
+            codecError = e;
+            wakeUp();
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            // the codec config is also received as a BUFFER_FLAG_CODEC_CONFIG packet, the format is only needed by the muxer
+            ScreenEncoder.this.onOutputFormatChanged(format);
+        }
+    }
 }
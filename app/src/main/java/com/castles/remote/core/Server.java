@@ -1,5 +1,6 @@
 package com.castles.remote.core;
 
+import android.graphics.Bitmap;
 import android.graphics.Rect;
 
 import java.io.IOException;
@@ -7,7 +8,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
@@ -27,30 +32,63 @@ public final class Server {
 
     private static Context serviceContext;
     private static Handler serviceHandler;
+    // the streams shared by all the viewers of a display, by display id
+    private static final Map<Integer, StreamSession> STREAM_SESSIONS = new HashMap<>();
+
+    private static final long RETRY_INITIAL_DELAY = 500; // ms
+    private static final long RETRY_MAX_DELAY = 30_000; // ms
+    private static final long RESUME_RETRY_DELAY = 50; // ms
 
     private Server() {
     }
 
     /**
      * 3.类似于scrcpy第三步进入scrcpy方法
+     * <p>
+     * If a stream is already running, the connection is attached to it as an additional viewer, instead of starting
+     * another encoder.
      *
      * @param options
      * @param host
-     * @return
+     * @return {@code true} if the connection to the client has been established
      * @throws IOException
      */
-    private static Controller castleRemote(int port, Options options, String ip,String host, byte[] buffer) throws IOException {
+    private static boolean castleRemote(int port, Options options, String ip,String host, byte[] buffer) throws IOException {
+        if (options.getSnapshotInterval() > 0) {
+            return castleSnapshots(port, options, ip, host, buffer);
+        }
         //初始化设备管理器
-        final Device device = new Device(options);
+        StreamSession session = getStreamSession(options);
+        if (!session.isCompatible(options.getVideoCodecs())) {
+            Ln.w("The client cannot decode the running stream (" + session.getVideoCodec().getName() + ")");
+            // if no viewer uses it, end the session, so that the next attempt creates one for the codecs of this client
+            session.releaseIfUnused();
+            return false;
+        }
+        final Device device = session.getDevice();
         Controller controller = null;
+        boolean connected = false;
         //根据tunnelForward的值来创建连接
         boolean tunnelForward = options.isTunnelForward();
-        try (DesktopConnection connection = DesktopConnection.open(port, device, tunnelForward, ip, host, buffer)) {
-            ScreenEncoder screenEncoder = new ScreenEncoder(options.getSendFrameMeta(), options.getBitRate());
+        // the codec is not sent in the session header if the client does not support codec negotiation
+        VideoCodec videoCodec = options.getVideoCodecs() != null ? session.getVideoCodec() : null;
+        try (DesktopConnection connection = DesktopConnection.open(port, device, tunnelForward, ip, host, buffer, videoCodec,
+                options.isMultiplexed(), session.getSessionToken())) {
+            connected = true;
+            if (options.getRtpPort() > 0) {
+                connection.enableRtp(options.getRtpPort(), session.getVideoCodec(), options.getRtpFecGroupSize());
+            }
+            Viewer viewer = new Viewer(session.getScreenEncoder().getBroadcaster(), connection, options.getSendFrameMeta(),
+                    options.getFrameMetaFlags());
+            if (!session.attach(viewer)) {
+                // the stream has ended concurrently, the client will reconnect
+                Ln.w("Stream session ended, viewer not attached");
+                return true;
+            }
 
             // 根据Control参数确认是否能对设备进行操作，如按键、鼠标等事件的响应
             if (options.getControl()) {
-                controller = new Controller(device, connection);
+                controller = new Controller(device, connection, session.getScreenEncoder());
 
                 // asynchronous
                 startController(controller);
@@ -58,8 +96,8 @@ public final class Server {
             }
             try {
                 // synchronous
-                //录屏和编码
-                screenEncoder.streamScreen(device, connection.getVideoOutputStream());
+                // the encoder runs on the session thread, only write the packets to this connection
+                viewer.stream();
             } catch (IOException e) {
                 // this is expected on close
                 Ln.d("Screen streaming stopped");
@@ -67,9 +105,74 @@ public final class Server {
         } catch (Exception e) {
             e.printStackTrace();
             RemoteService.setIsStarted(false);
+        } finally {
+            if (controller != null) {
+                controller.stop();
+            }
+            session.releaseIfUnused();
         }
         Ln.d("Server castleRemote exit!!!!!");
-        return controller;
+        return connected;
+    }
+
+    /**
+     * Send periodic snapshots instead of the video stream, the encoder is not used.
+     */
+    private static boolean castleSnapshots(int port, Options options, String ip, String host, byte[] buffer) {
+        // the video size is the snapshot size, so that the client positions are mapped correctly
+        options.setMaxSize(options.getSnapshotMaxSize());
+        final Device device = new Device(options);
+        Controller controller = null;
+        boolean connected = false;
+        try (DesktopConnection connection = DesktopConnection.open(port, device, options.isTunnelForward(), ip, host, buffer, null,
+                options.isMultiplexed(), 0)) {
+            connected = true;
+            if (options.getControl()) {
+                controller = new Controller(device, connection, null);
+
+                // asynchronous
+                startController(controller);
+                startDeviceMessageSender(controller.getSender());
+            }
+            try {
+                // synchronous
+                new SnapshotStreamer(options).streamSnapshots(device, connection);
+            } catch (IOException e) {
+                // this is expected on close
+                Ln.d("Snapshot streaming stopped");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            RemoteService.setIsStarted(false);
+        } finally {
+            if (controller != null) {
+                controller.stop();
+            }
+            device.release();
+        }
+        return connected;
+    }
+
+    private static synchronized StreamSession getStreamSession(Options options) {
+        // each display is captured by its own encoder, over separate video streams
+        StreamSession session = STREAM_SESSIONS.get(options.getDisplayId());
+        if (session == null || session.isEnded()) {
+            session = new StreamSession(options);
+            STREAM_SESSIONS.put(options.getDisplayId(), session);
+        }
+        return session;
+    }
+
+    /**
+     * Indicate whether a stream is waiting for its client to reconnect, so that the reconnection must not be delayed.
+     */
+    private static synchronized boolean hasResumableSession() {
+        for (StreamSession session : STREAM_SESSIONS.values()) {
+            if (session.isResumable()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private static void startController(final Controller controller) {
@@ -96,8 +199,8 @@ public final class Server {
 
     @SuppressWarnings("checkstyle:MagicNumber")
     private static Options createOptions(String... args) {
-        if (args.length != 8) {
-            throw new IllegalArgumentException("Expecting 7 parameters");
+        if (args.length < 8) {
+            throw new IllegalArgumentException("Expecting at least 8 parameters");
         }
         Options options = new Options();
         // multiple of 8
@@ -125,9 +228,156 @@ public final class Server {
         options.setControl(control);
         Ln.d("createOptions control:" + control);
 
+        // args[6] and args[7] are the port and the host, the remaining ones are optional "key=value" parameters
+        for (int i = 8; i < args.length; ++i) {
+            parseOption(options, args[i]);
+        }
+        checkBitRateRange(options);
+
         return options;
     }
 
+    /**
+     * Check the adaptive bitrate range once all the options are known, since the bounds and the initial bitrate are
+     * passed separately.
+     */
+    static void checkBitRateRange(Options options) {
+        int bitRate = options.getBitRate();
+        int minBitRate = options.getMinBitRate();
+        int maxBitRate = options.getMaxBitRate();
+        // 0 for the bounds derived from the initial bitrate
+        if (minBitRate > 0 && maxBitRate > 0 && minBitRate > maxBitRate) {
+            throw new IllegalArgumentException("Invalid bitrate range: min_bit_rate " + minBitRate + " > max_bit_rate " + maxBitRate);
+        }
+        if (minBitRate > 0 && bitRate < minBitRate) {
+            throw new IllegalArgumentException("Invalid bitrate: " + bitRate + " < min_bit_rate " + minBitRate);
+        }
+        if (maxBitRate > 0 && bitRate > maxBitRate) {
+            throw new IllegalArgumentException("Invalid bitrate: " + bitRate + " > max_bit_rate " + maxBitRate);
+        }
+    }
+
+    private static void parseOption(Options options, String arg) {
+        int equalIndex = arg.indexOf('=');
+        if (equalIndex == -1) {
+            throw new IllegalArgumentException("Invalid option (expecting key=value): \"" + arg + "\"");
+        }
+        String key = arg.substring(0, equalIndex);
+        String value = arg.substring(equalIndex + 1);
+        switch (key) {
+            case "multiplex":
+                options.setMultiplexed(Boolean.parseBoolean(value));
+                break;
+            case "rtp_port":
+                options.setRtpPort(Integer.parseInt(value));
+                break;
+            case "rtp_fec_group":
+                int fecGroupSize = Integer.parseInt(value);
+                if (fecGroupSize < 0 || fecGroupSize > 255) {
+                    throw new IllegalArgumentException("Invalid FEC group size: " + fecGroupSize);
+                }
+                options.setRtpFecGroupSize(fecGroupSize);
+                break;
+            case "session_grace_period":
+                options.setSessionGracePeriod(Integer.parseInt(value));
+                break;
+            case "frame_meta_flags":
+                options.setFrameMetaFlags(Boolean.parseBoolean(value));
+                break;
+            case "async_encoding":
+                options.setAsyncEncoding(Boolean.parseBoolean(value));
+                break;
+            case "adaptive_bit_rate":
+                options.setAdaptiveBitRate(Boolean.parseBoolean(value));
+                break;
+            case "min_bit_rate":
+                int minBitRate = Integer.parseInt(value);
+                if (minBitRate < 0) {
+                    throw new IllegalArgumentException("Invalid min bitrate: " + minBitRate);
+                }
+                options.setMinBitRate(minBitRate);
+                break;
+            case "max_bit_rate":
+                int maxBitRate = Integer.parseInt(value);
+                if (maxBitRate < 0) {
+                    throw new IllegalArgumentException("Invalid max bitrate: " + maxBitRate);
+                }
+                options.setMaxBitRate(maxBitRate);
+                break;
+            case "max_fps":
+                options.setMaxFps(Integer.parseInt(value));
+                break;
+            case "idle_mode":
+                options.setIdleMode(Boolean.parseBoolean(value));
+                break;
+            case "encoder_profile":
+                EncoderProfile profile = EncoderProfile.findByName(value);
+                if (profile == null) {
+                    throw new IllegalArgumentException("Unknown encoder profile: \"" + value + "\"");
+                }
+                options.setEncoderProfile(profile);
+                break;
+            case "codecs":
+                options.setVideoCodecs(parseVideoCodecs(value));
+                break;
+            case "record_dir":
+                options.setRecordDir(value);
+                break;
+            case "record_segment_size":
+                options.setRecordSegmentSize(Long.parseLong(value));
+                break;
+            case "record_segment_duration":
+                options.setRecordSegmentDuration(Integer.parseInt(value));
+                break;
+            case "display_id":
+                options.setDisplayId(Integer.parseInt(value));
+                break;
+            case "snapshot_interval":
+                options.setSnapshotInterval(Integer.parseInt(value));
+                break;
+            case "snapshot_quality":
+                options.setSnapshotQuality(Integer.parseInt(value));
+                break;
+            case "snapshot_max_size":
+                // multiple of 8
+                options.setSnapshotMaxSize(Integer.parseInt(value) & ~7);
+                break;
+            case "snapshot_format":
+                options.setSnapshotFormat(parseSnapshotFormat(value));
+                break;
+            default:
+                Ln.w("Unknown option: " + key);
+                return;
+        }
+        Ln.d("createOptions " + key + ":" + value);
+    }
+
+    private static List<VideoCodec> parseVideoCodecs(String value) {
+        // input format: "h265,h264", by order of preference
+        List<VideoCodec> codecs = new ArrayList<>();
+        for (String name : value.split(",")) {
+            VideoCodec codec = VideoCodec.findByName(name.trim());
+            if (codec == null) {
+                // the client may support codecs unknown by this server
+                Ln.w("Unknown video codec: " + name);
+                continue;
+            }
+            codecs.add(codec);
+        }
+        return codecs;
+    }
+
+    private static Bitmap.CompressFormat parseSnapshotFormat(String value) {
+        switch (value) {
+            case "jpeg":
+                return Bitmap.CompressFormat.JPEG;
+            case "webp":
+                return Bitmap.CompressFormat.WEBP;
+            default:
+                throw new IllegalArgumentException("Unknown snapshot format: \"" + value + "\"");
+        }
+    }
+
     @SuppressWarnings("checkstyle:MagicNumber")
     private static Rect parseCrop(String crop) {
         if ("-".equals(crop)) {
@@ -156,24 +406,27 @@ public final class Server {
 
     /**
      * 类似于scrcpy的main方法
+     * <p>
+     * Connect to the agent whenever a Wi-Fi network is available: immediately when it comes up, then with a jittered
+     * exponential backoff while the agent is unreachable. Nothing runs while the device is offline.
      *
      * @param context
      * @throws Exception
      */
     public static void startConnect(Context context, byte[] buffer, String... args) throws Exception {
-
-        NetworkInfo.State state;
         ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-
-        while (true) {
-            state = connectivityManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI).getState();
-            if (state != NetworkInfo.State.CONNECTED) {
-                Ln.d("WIFI DISCONNECTED!!!");
-            } else if (state == NetworkInfo.State.CONNECTED) {
-                Ln.d("WIFI CONNECTED!!!");
-            }
-            Controller controller = null;
-            if (state == NetworkInfo.State.CONNECTED) {
+        NetworkMonitor networkMonitor = new NetworkMonitor(connectivityManager);
+        Backoff backoff = new Backoff(RETRY_INITIAL_DELAY, RETRY_MAX_DELAY);
+        networkMonitor.start();
+        try {
+            while (true) {
+                if (!networkMonitor.isConnected()) {
+                    Ln.d("WIFI DISCONNECTED!!!");
+                    networkMonitor.awaitConnected();
+                    Ln.d("WIFI CONNECTED!!!");
+                    // a new network, the agent may be reachable again
+                    backoff.reset();
+                }
                 WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
                 WifiInfo wifiInfo = wifiManager.getConnectionInfo();
                 int i = wifiInfo.getIpAddress();
@@ -183,17 +436,29 @@ public final class Server {
                 String host = args[7];
                 //对尺寸，码率，裁剪等参数进行解析，初始化options对象
                 Options options = createOptions(args);
+                boolean connected = false;
                 try {
-                    controller = castleRemote(port, options, ip,host, buffer);
+                    connected = castleRemote(port, options, ip,host, buffer);
                 } catch (Exception e) {
                     Ln.e("castleRemote start", e);
                 }
-            }
 
-            if (controller != null) {
-                controller.stop();
+                long delay;
+                if (hasResumableSession()) {
+                    // the stream is still running, reconnect as soon as possible to resume it
+                    delay = RESUME_RETRY_DELAY;
+                } else {
+                    if (connected) {
+                        // the agent was reachable, the connection has been closed afterwards
+                        backoff.reset();
+                    }
+                    delay = backoff.next();
+                }
+                // return early if the network changes
+                networkMonitor.awaitChange(delay);
             }
-            Thread.sleep(1000);
+        } finally {
+            networkMonitor.stop();
         }
     }
 
@@ -0,0 +1,199 @@
+package com.castles.remote.core;
+
+import android.graphics.Bitmap;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.IBinder;
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Low-bandwidth alternative to {@link ScreenEncoder#streamScreen(Device)}: periodic still images of the screen, for
+ * dashboards showing many devices.
+ * <p>
+ * The virtual display renders directly at the (small) video size of the device into an {@link ImageReader}, so the
+ * downscaling costs nothing on the CPU. A frame is compressed and sent only if the display has rendered since the last
+ * snapshot and its content hash has changed.
+ * <p>
+ * Each snapshot is sent as a frame meta header (capture time in microseconds, image size), followed by the compressed
+ * image.
+ */
+public final class SnapshotStreamer implements Device.ScreenInfoListener {
+
+    private static final int DEFAULT_QUALITY = 60;
+    private static final int MAX_IMAGES = 2;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int interval; // ms
+    private final int quality;
+    private final Bitmap.CompressFormat format;
+
+    private final AtomicBoolean screenInfoChanged = new AtomicBoolean();
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(12);
+    private final SnapshotOutputStream output = new SnapshotOutputStream();
+
+    private Bitmap bitmap; // reused while the size does not change
+    private ByteBuffer packedPixels; // the pixels without row padding, reused while the size does not change
+    private boolean hasLastHash;
+    private long lastHash;
+
+    public SnapshotStreamer(Options options) {
+        interval = options.getSnapshotInterval();
+        quality = options.getSnapshotQuality() > 0 ? options.getSnapshotQuality() : DEFAULT_QUALITY;
+        format = options.getSnapshotFormat();
+    }
+
+    @Override
+    public void onScreenInfoChanged(ScreenInfo screenInfo) {
+        screenInfoChanged.set(true);
+    }
+
+    /**
+     * Send the snapshots until the connection fails.
+     */
+    public void streamSnapshots(Device device, DesktopConnection connection) throws IOException {
+        device.addScreenInfoListener(this);
+        IBinder display = ScreenEncoder.createDisplay();
+        ImageReader imageReader = null;
+        try {
+            while (true) {
+                if (imageReader == null || screenInfoChanged.getAndSet(false)) {
+                    ImageReader previousReader = imageReader;
+                    imageReader = createImageReader(display, device.getScreenInfo(), device.getLayerStack());
+                    if (previousReader != null) {
+                        // only close it once the display does not render to it anymore
+                        previousReader.close();
+                    }
+                }
+                SystemClock.sleep(interval);
+                Image image = imageReader.acquireLatestImage();
+                if (image == null) {
+                    // nothing rendered since the last snapshot
+                    continue;
+                }
+                try {
+                    sendSnapshot(image, connection);
+                } finally {
+                    image.close();
+                }
+            }
+        } finally {
+            device.removeScreenInfoListener(this);
+            ScreenEncoder.destroyDisplay(display);
+            if (imageReader != null) {
+                imageReader.close();
+            }
+            if (bitmap != null) {
+                bitmap.recycle();
+                bitmap = null;
+            }
+        }
+    }
+
+    private ImageReader createImageReader(IBinder display, ScreenInfo screenInfo, int layerStack) {
+        Rect contentRect = screenInfo.getContentRect();
+        Size size = screenInfo.getVideoSize();
+        ImageReader imageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), PixelFormat.RGBA_8888, MAX_IMAGES);
+        ScreenEncoder.setDisplaySurface(display, imageReader.getSurface(), contentRect, size.toRect(), layerStack);
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+        }
+        packedPixels = null;
+        // always send the first snapshot at the new size
+        hasLastHash = false;
+        Ln.i("Snapshot size: " + size);
+        return imageReader;
+    }
+
+    private void sendSnapshot(Image image, DesktopConnection connection) throws IOException {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer pixels = plane.getBuffer();
+        long hash = hash(pixels);
+        if (hasLastHash && hash == lastHash) {
+            // the content has not changed (typically a frame repeated by the display)
+            return;
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowLength = width * plane.getPixelStride();
+        if (plane.getRowStride() != rowLength) {
+            // the rows are padded, but the last one may not be, so the buffer may be shorter than rowStride * height
+            if (packedPixels == null) {
+                packedPixels = ByteBuffer.allocate(rowLength * height);
+            }
+            packRows(pixels, plane.getRowStride(), rowLength, height, packedPixels);
+            pixels = packedPixels;
+        }
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.copyPixelsFromBuffer(pixels);
+        output.reset();
+        bitmap.compress(format, quality, output);
+
+        headerBuffer.clear();
+        headerBuffer.putLong(image.getTimestamp() / 1000);
+        headerBuffer.putInt(output.size());
+        headerBuffer.flip();
+        connection.sendVideoPacket(headerBuffer, output.toByteBuffer());
+
+        lastHash = hash;
+        hasLastHash = true;
+    }
+
+    /**
+     * Copy the rows without their padding, from the position of {@code pixels} (which is not changed) into {@code out},
+     * flipped for reading.
+     *
+     * @param rowLength the length of a row without padding, in bytes
+     */
+    static void packRows(ByteBuffer pixels, int rowStride, int rowLength, int height, ByteBuffer out) {
+        out.clear();
+        ByteBuffer row = pixels.duplicate();
+        int start = pixels.position();
+        for (int y = 0; y < height; ++y) {
+            int offset = start + y * rowStride;
+            // the rows only move forward, so the new limit is never before the current position
+            row.limit(offset + rowLength).position(offset);
+            out.put(row);
+        }
+        out.flip();
+    }
+
+    /**
+     * FNV-1a over 64-bit words, without changing the buffer position.
+     */
+    private static long hash(ByteBuffer buffer) {
+        long hash = FNV_OFFSET_BASIS;
+        int limit = buffer.limit();
+        int i = buffer.position();
+        for (; i + 8 <= limit; i += 8) {
+            hash ^= buffer.getLong(i);
+            hash *= FNV_PRIME;
+        }
+        for (; i < limit; ++i) {
+            hash ^= buffer.get(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Expose the compressed image without copying it.
+     */
+    private static final class SnapshotOutputStream extends ByteArrayOutputStream {
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
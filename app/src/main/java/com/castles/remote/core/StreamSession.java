@@ -0,0 +1,131 @@
+package com.castles.remote.core;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.List;
+
+/**
+ * Screen capture shared by all the viewers: one device, one encoder and its broadcaster.
+ * <p>
+ * The encoder runs on its own thread, from the first viewer attachment until the last viewer is gone (or until the end
+ * of the grace period, if session resumption is enabled).
+ * <p>
+ * With session resumption, the session is identified by a random token sent in the session header: a client receiving
+ * the same token after a reconnection knows that the stream (codec, decoder state) is resumed.
+ */
+public final class StreamSession {
+
+    private final Device device;
+    private final ScreenEncoder screenEncoder;
+    private final VideoCodec videoCodec;
+    private final long sessionToken; // 0 if session resumption is disabled
+
+    private Thread thread; // null until the first viewer is attached
+    private boolean ended;
+
+    public StreamSession(Options options) {
+        device = new Device(options);
+        screenEncoder = new ScreenEncoder(options);
+        // the codec must be known before opening the connections, since it is sent in the session header
+        videoCodec = screenEncoder.negotiateCodec(options.getVideoCodecs(), device.getScreenInfo().getVideoSize());
+        if (options.getSessionGracePeriod() > 0) {
+            screenEncoder.getBroadcaster().setGracePeriod(options.getSessionGracePeriod());
+            sessionToken = generateToken();
+        } else {
+            sessionToken = 0;
+        }
+    }
+
+    private static long generateToken() {
+        SecureRandom random = new SecureRandom();
+        long token;
+        do {
+            token = random.nextLong();
+        } while (token == 0);
+        return token;
+    }
+
+    public Device getDevice() {
+        return device;
+    }
+
+    public ScreenEncoder getScreenEncoder() {
+        return screenEncoder;
+    }
+
+    public VideoCodec getVideoCodec() {
+        return videoCodec;
+    }
+
+    /**
+     * @return the token identifying this session, or 0 if session resumption is disabled
+     */
+    public long getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * Indicate whether the session is waiting for a client to reconnect (during the grace period).
+     */
+    public boolean isResumable() {
+        return !isEnded() && screenEncoder.getBroadcaster().isIdle();
+    }
+
+    /**
+     * Indicate whether a client announcing the given codecs is able to decode this stream.
+     *
+     * @param clientCodecs the codecs announced by the client, or {@code null} if the client did not announce any (it
+     *                     then only supports H.264)
+     */
+    public boolean isCompatible(List<VideoCodec> clientCodecs) {
+        return clientCodecs == null ? videoCodec == VideoCodec.H264 : clientCodecs.contains(videoCodec);
+    }
+
+    /**
+     * Add a viewer to the stream, and start the encoder if it is the first one.
+     *
+     * @return {@code false} if the session has ended
+     */
+    public synchronized boolean attach(Viewer viewer) {
+        if (ended || !screenEncoder.getBroadcaster().addViewer(viewer)) {
+            return false;
+        }
+        if (thread == null) {
+            thread = new Thread(this::stream, "StreamSession");
+            thread.start();
+        }
+        return true;
+    }
+
+    public synchronized boolean isEnded() {
+        return ended || screenEncoder.getBroadcaster().isClosed();
+    }
+
+    /**
+     * Release the device if no viewer has ever been attached (the connection failed).
+     */
+    public synchronized void releaseIfUnused() {
+        if (thread == null && !ended) {
+            ended = true;
+            screenEncoder.getBroadcaster().close();
+            device.release();
+        }
+    }
+
+    private void stream() {
+        try {
+            // synchronous
+            //录屏和编码
+            screenEncoder.streamScreen(device);
+        } catch (IOException | RuntimeException e) {
+            Ln.e("Screen streaming failed", e);
+        } finally {
+            screenEncoder.getBroadcaster().close();
+            synchronized (this) {
+                ended = true;
+            }
+            device.release();
+            Ln.d("Screen streaming stopped");
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.castles.remote.core;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out stage between the encoder and the viewers: each encoded packet is produced once, then copied into the
+ * bounded queue of every viewer.
+ * <p>
+ * A slow viewer only fills its own queue: it drops frames until the next key frame (see {@link VideoPacketQueue}),
+ * without slowing down the encoder or the other viewers.
+ * <p>
+ * The last codec config packet (SPS/PPS) and the packets of the current GOP are cached (see {@link GopCache}), so that
+ * a viewer joining a running stream receives them first, and can display the current frame immediately. If the GOP is
+ * not cached (it is too large), the viewer starts on the next key frame (requested immediately).
+ * <p>
+ * Once the last viewer is removed, the broadcaster is closed and the encoder is stopped, unless a grace period is set:
+ * the encoder then keeps running (and the GOP cache up to date) during this period, so that a client reconnecting after a
+ * socket drop is resumed immediately, with a forced key frame.
+ */
+public final class VideoBroadcaster {
+
+    private static final int GOP_CACHE_CAPACITY = 8 * 1024 * 1024;
+    private static final int GOP_CACHE_MAX_PACKETS = 1024;
+
+    private final ScreenEncoder screenEncoder;
+
+    private final List<Viewer> viewers = new ArrayList<>();
+    private final GopCache gopCache = new GopCache(GOP_CACHE_CAPACITY, GOP_CACHE_MAX_PACKETS);
+    private VideoPacket configPacket; // null until the first codec config packet
+    private boolean closed;
+    private long gracePeriod; // ms, 0 to stop the encoder as soon as the last viewer is removed
+    private boolean idle; // no viewer since the last one was removed, during the grace period
+    private int idleGeneration; // incremented each time the broadcaster becomes idle
+    private ScheduledExecutorService graceTimer; // null until the first grace period starts
+    private ScheduledFuture<?> expiration; // null if no grace period is running
+
+    private volatile long ptsOrigin;
+
+    VideoBroadcaster(ScreenEncoder screenEncoder) {
+        this.screenEncoder = screenEncoder;
+    }
+
+    /**
+     * @param gracePeriod the time (in ms) to keep the encoder running once the last viewer is removed, or 0
+     */
+    public synchronized void setGracePeriod(long gracePeriod) {
+        this.gracePeriod = gracePeriod;
+    }
+
+    /**
+     * Indicate whether the last viewer has been removed recently, and the encoder is still running for the grace period.
+     */
+    public synchronized boolean isIdle() {
+        return idle;
+    }
+
+    /**
+     * Start delivering the packets to the viewer.
+     *
+     * @return {@code false} if the broadcaster is closed (the stream has ended)
+     */
+    public boolean addViewer(Viewer viewer) {
+        boolean replayed;
+        boolean resumed;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            resumed = idle;
+            idle = false;
+            cancelExpiration();
+            replayed = gopCache.isValid();
+            if (configPacket != null) {
+                // the live packets are queued right after the replayed ones
+                viewer.setReplay(gopCache.snapshot(configPacket));
+            }
+            if (!replayed) {
+                // the first frame sent must be decodable on its own
+                viewer.getPacketQueue().dropUntilKeyFrame();
+            }
+            viewers.add(viewer);
+            Ln.i("Viewer added (" + viewers.size() + " viewers" + (replayed ? ", GOP replayed" : "") + (resumed ? ", session resumed" : "")
+                    + ")");
+        }
+        if (!replayed || resumed) {
+            // no effect if the encoder is not started yet, it will start with a key frame anyway
+            // on resume, the replayed GOP gives an immediate picture, the key frame refreshes it
+            screenEncoder.requestKeyFrame(false);
+        }
+        return true;
+    }
+
+    /**
+     * Stop delivering the packets to the viewer. Removing the last viewer closes the broadcaster and stops the encoder,
+     * immediately or at the end of the grace period.
+     */
+    public void removeViewer(Viewer viewer) {
+        boolean stop;
+        synchronized (this) {
+            if (!viewers.remove(viewer)) {
+                return;
+            }
+            Ln.i("Viewer removed (" + viewers.size() + " viewers)");
+            stop = false;
+            if (viewers.isEmpty()) {
+                if (gracePeriod > 0) {
+                    idle = true;
+                    scheduleExpiration(++idleGeneration, gracePeriod);
+                } else {
+                    closed = true;
+                    stop = true;
+                }
+            }
+        }
+        viewer.getPacketQueue().stop();
+        if (stop) {
+            screenEncoder.stop();
+        }
+    }
+
+    // called with the lock held
+    private void scheduleExpiration(final int generation, long delay) {
+        if (graceTimer == null) {
+            // a single thread for all the grace periods of the session, however many times the clients reconnect
+            graceTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "SessionGrace");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        expiration = graceTimer.schedule(() -> expire(generation), delay, TimeUnit.MILLISECONDS);
+    }
+
+    // called with the lock held
+    private void cancelExpiration() {
+        if (expiration != null) {
+            expiration.cancel(false);
+            expiration = null;
+        }
+    }
+
+    private void expire(int generation) {
+        synchronized (this) {
+            // the task may already be running when it is cancelled: not resumed (nor resumed and dropped again) since
+            if (!idle || idleGeneration != generation) {
+                return;
+            }
+            idle = false;
+            closed = true;
+            expiration = null;
+            graceTimer.shutdown();
+        }
+        Ln.i("Grace period expired, stopping the stream");
+        screenEncoder.stop();
+    }
+
+    /**
+     * Close the broadcaster once the stream has ended, so that the writer loops of the remaining viewers return.
+     */
+    public void close() {
+        List<Viewer> remaining;
+        synchronized (this) {
+            closed = true;
+            idle = false;
+            cancelExpiration();
+            if (graceTimer != null) {
+                graceTimer.shutdown();
+            }
+            remaining = new ArrayList<>(viewers);
+            viewers.clear();
+        }
+        for (Viewer viewer : remaining) {
+            viewer.getPacketQueue().stop();
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized int getViewerCount() {
+        return viewers.size();
+    }
+
+    /**
+     * @return the presentation timestamp of the first frame, so that the viewers send timestamps relative to it
+     */
+    public long getPtsOrigin() {
+        return ptsOrigin;
+    }
+
+    /**
+     * Copy an encoded packet to every viewer queue, on the thread receiving the encoder output.
+     * <p>
+     * The position of the codec buffer is left unchanged.
+     */
+    public void broadcast(ByteBuffer codecBuffer, MediaCodec.BufferInfo bufferInfo, int nalFlags) {
+        boolean config = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        int position = codecBuffer.position();
+        boolean resync = false;
+        synchronized (this) {
+            if (config) {
+                if (configPacket == null) {
+                    configPacket = new VideoPacket();
+                }
+                configPacket.set(codecBuffer, bufferInfo.presentationTimeUs, bufferInfo.flags, nalFlags);
+                codecBuffer.position(position);
+                // the cached packets cannot be decoded with the new config
+                gopCache.invalidate();
+            } else {
+                if (ptsOrigin == 0) {
+                    ptsOrigin = bufferInfo.presentationTimeUs;
+                }
+                gopCache.add(codecBuffer, bufferInfo.presentationTimeUs, bufferInfo.flags, nalFlags);
+            }
+            for (Viewer viewer : viewers) {
+                int result = viewer.getPacketQueue().offer(codecBuffer, bufferInfo.presentationTimeUs, bufferInfo.flags, nalFlags);
+                codecBuffer.position(position);
+                if (result == VideoPacketQueue.OFFER_DROPPED_UNTIL_KEY_FRAME) {
+                    Ln.w("Viewer too slow, dropping frames until the next key frame");
+                    resync = true;
+                }
+            }
+        }
+        if (resync) {
+            // rate limited, so that a viewer constantly too slow does not degrade the stream of the others
+            screenEncoder.requestKeyFrame();
+        }
+    }
+
+    /**
+     * Account a packet written by a viewer. Only the oldest viewer drives the bitrate controller.
+     */
+    void onPacketWritten(Viewer viewer, long writeTimeNs) {
+        boolean primary;
+        synchronized (this) {
+            primary = !viewers.isEmpty() && viewers.get(0) == viewer;
+        }
+        VideoPacketQueue queue = viewer.getPacketQueue();
+        screenEncoder.onPacketWritten(writeTimeNs, queue.size(), queue.getDroppedCount(), primary);
+    }
+}
@@ -0,0 +1,78 @@
+package com.castles.remote.core;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoded packet copied out of a codec output buffer, so that the codec buffer can be released immediately.
+ * <p>
+ * Instances are owned and recycled by a {@link VideoPacketQueue} (or hold the codec config cached by the
+ * {@link VideoBroadcaster}).
+ */
+public final class VideoPacket {
+
+    private static final int CAPACITY_GRANULARITY = 64 * 1024;
+
+    private ByteBuffer data;
+    private long presentationTimeUs;
+    private int flags;
+    private int nalFlags;
+
+    VideoPacket() {
+        // only created by VideoPacketQueue and VideoBroadcaster
+    }
+
+    void set(ByteBuffer codecBuffer, long presentationTimeUs, int flags, int nalFlags) {
+        int size = codecBuffer.remaining();
+        if (data == null || data.capacity() < size) {
+            // round up, so that a slowly growing packet size does not reallocate on every frame
+            int capacity = (size + CAPACITY_GRANULARITY - 1) / CAPACITY_GRANULARITY * CAPACITY_GRANULARITY;
+            data = ByteBuffer.allocateDirect(capacity);
+        }
+        this.nalFlags = nalFlags;
+        data.clear();
+        data.put(codecBuffer);
+        data.flip();
+        this.presentationTimeUs = presentationTimeUs;
+        this.flags = flags;
+    }
+
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    public int getSize() {
+        return data.remaining();
+    }
+
+    public long getPresentationTimeUs() {
+        return presentationTimeUs;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isConfig() {
+        return (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+    }
+
+    public boolean isKeyFrame() {
+        return (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    }
+
+    /**
+     * @return the classification of the packet, as returned by {@link NalParser#parse(ByteBuffer, int, VideoCodec)}
+     */
+    public int getNalFlags() {
+        return nalFlags;
+    }
+
+    /**
+     * Indicate whether other frames may depend on this packet, so that it must not be dropped.
+     */
+    public boolean isReference() {
+        return NalParser.isReference(nalFlags);
+    }
+}
@@ -0,0 +1,159 @@
+package com.castles.remote.core;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Bounded queue of encoded packets between the encoder output thread and the socket writer thread of a viewer.
+ * <p>
+ * Packets are recycled, so that the steady state does not allocate. When the queue is full:
+ * <ol>
+ * <li>non-reference frames (the incoming one and the queued ones) are dropped;</li>
+ * <li>if this is not sufficient, every queued frame is dropped, and incoming frames are dropped until the next key
+ * frame.</li>
+ * </ol>
+ * Codec config packets are never dropped.
+ */
+public final class VideoPacketQueue {
+
+    public static final int OFFER_QUEUED = 0;
+    public static final int OFFER_DROPPED = 1;
+    public static final int OFFER_DROPPED_UNTIL_KEY_FRAME = 2;
+
+    private final int capacity;
+    private final int maxBytes;
+
+    private final ArrayDeque<VideoPacket> queue = new ArrayDeque<>();
+    private final ArrayDeque<VideoPacket> pool = new ArrayDeque<>();
+    private int queuedBytes;
+    private boolean waitingForKeyFrame;
+    private boolean stopped;
+    private long droppedCount;
+
+    public VideoPacketQueue(int capacity, int maxBytes) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Copy the content of the codec buffer into a queued packet, unless the drop policy rejects it.
+     * <p>
+     * The buffer position is consumed only if the packet is queued.
+     *
+     * @param flags     the {@link MediaCodec.BufferInfo} flags
+     * @param nalFlags  the classification of the packet (see {@link NalParser#parse(ByteBuffer, int, VideoCodec)})
+     * @return one of the {@code OFFER_*} constants
+     */
+    public synchronized int offer(ByteBuffer codecBuffer, long presentationTimeUs, int flags, int nalFlags) {
+        if (stopped) {
+            return OFFER_DROPPED;
+        }
+        boolean config = (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        boolean keyFrame = (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (!config && waitingForKeyFrame) {
+            if (!keyFrame) {
+                ++droppedCount;
+                return OFFER_DROPPED;
+            }
+            waitingForKeyFrame = false;
+        }
+
+        int size = codecBuffer.remaining();
+        if (!config && isFull(size)) {
+            if (!NalParser.isReference(nalFlags)) {
+                ++droppedCount;
+                return OFFER_DROPPED;
+            }
+            drop(false);
+            if (isFull(size)) {
+                drop(true);
+                if (!keyFrame) {
+                    waitingForKeyFrame = true;
+                    ++droppedCount;
+                    return OFFER_DROPPED_UNTIL_KEY_FRAME;
+                }
+            }
+        }
+
+        VideoPacket packet = pool.isEmpty() ? new VideoPacket() : pool.poll();
+        packet.set(codecBuffer, presentationTimeUs, flags, nalFlags);
+        queue.add(packet);
+        queuedBytes += size;
+        notify();
+        return OFFER_QUEUED;
+    }
+
+    /**
+     * Drop the incoming frames until the next key frame (config packets are still accepted), typically for a viewer
+     * joining a running stream.
+     */
+    public synchronized void dropUntilKeyFrame() {
+        waitingForKeyFrame = true;
+    }
+
+    /**
+     * Wait for the next packet.
+     *
+     * @return the packet, to be passed to {@link #recycle(VideoPacket)} once written, or {@code null} if the queue is
+     * stopped
+     */
+    public synchronized VideoPacket take() throws InterruptedException {
+        while (queue.isEmpty() && !stopped) {
+            wait();
+        }
+        if (stopped) {
+            return null;
+        }
+        VideoPacket packet = queue.poll();
+        queuedBytes -= packet.getSize();
+        return packet;
+    }
+
+    public synchronized void recycle(VideoPacket packet) {
+        if (pool.size() < capacity) {
+            pool.add(packet);
+        }
+    }
+
+    /**
+     * Wake up the writer thread, {@link #take()} will return {@code null} until {@link #reset()} is called.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        notify();
+    }
+
+    public synchronized void reset() {
+        drop(true);
+        waitingForKeyFrame = false;
+        stopped = false;
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    private boolean isFull(int incomingSize) {
+        return queue.size() >= capacity || (!queue.isEmpty() && queuedBytes + incomingSize > maxBytes);
+    }
+
+    private void drop(boolean dropReferences) {
+        Iterator<VideoPacket> it = queue.iterator();
+        while (it.hasNext()) {
+            VideoPacket packet = it.next();
+            if (!packet.isConfig() && (dropReferences || !packet.isReference())) {
+                it.remove();
+                queuedBytes -= packet.getSize();
+                ++droppedCount;
+                recycle(packet);
+            }
+        }
+    }
+}
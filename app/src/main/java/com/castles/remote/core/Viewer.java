@@ -0,0 +1,128 @@
+package com.castles.remote.core;
+
+import android.media.MediaCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A client connection receiving the video stream of a {@link VideoBroadcaster}.
+ * <p>
+ * Each viewer has its own bounded packet queue, written to its socket by the thread calling {@link #stream()}, after
+ * the packets replayed on join (if any).
+ * <p>
+ * If frame meta flags are enabled, the high bits of the PTS field of the frame meta header carry the packet type, so
+ * that the client knows which packets it may skip without parsing the bitstream. Otherwise, config packets have the
+ * PTS -1, as before.
+ */
+public final class Viewer {
+
+    public static final long PACKET_FLAG_CONFIG = 1L << 63;
+    public static final long PACKET_FLAG_KEY_FRAME = 1L << 62;
+    // no other frame depends on this packet, it may be dropped
+    public static final long PACKET_FLAG_NON_REFERENCE = 1L << 61;
+
+    private static final int PACKET_QUEUE_CAPACITY = 8; // packets
+    private static final int PACKET_QUEUE_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final int NO_PTS = -1;
+
+    private final VideoBroadcaster broadcaster;
+    private final DesktopConnection connection;
+    private final boolean sendFrameMeta;
+    private final boolean frameMetaFlags;
+    private final VideoPacketQueue packetQueue = new VideoPacketQueue(PACKET_QUEUE_CAPACITY, PACKET_QUEUE_MAX_BYTES);
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(12);
+    private GopCache.Snapshot replay; // null if nothing to replay
+
+    public Viewer(VideoBroadcaster broadcaster, DesktopConnection connection, boolean sendFrameMeta, boolean frameMetaFlags) {
+        this.broadcaster = broadcaster;
+        this.connection = connection;
+        this.sendFrameMeta = sendFrameMeta;
+        this.frameMetaFlags = frameMetaFlags;
+    }
+
+    VideoPacketQueue getPacketQueue() {
+        return packetQueue;
+    }
+
+    void setReplay(GopCache.Snapshot replay) {
+        this.replay = replay;
+    }
+
+    /**
+     * Write the queued packets to the connection, until the stream ends or the connection fails.
+     * <p>
+     * The viewer must have been added to the broadcaster. It is removed on return.
+     */
+    public void stream() throws IOException {
+        try {
+            if (replay != null) {
+                writeReplay(replay);
+                // release the memory
+                replay = null;
+            }
+            VideoPacket packet;
+            while ((packet = packetQueue.take()) != null) {
+                try {
+                    ByteBuffer header = sendFrameMeta ? createFrameMeta(packet.getPresentationTimeUs(), packet.getFlags(),
+                            packet.getNalFlags(), packet.getSize()) : null;
+                    long writeStart = System.nanoTime();
+                    connection.sendVideoPacket(header, packet.getData(), getRelativePts(packet.getPresentationTimeUs(), packet.getFlags()),
+                            packet.getNalFlags());
+                    broadcaster.onPacketWritten(this, System.nanoTime() - writeStart);
+                } finally {
+                    packetQueue.recycle(packet);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for encoded packets", e);
+        } finally {
+            broadcaster.removeViewer(this);
+        }
+    }
+
+    private void writeReplay(GopCache.Snapshot snapshot) throws IOException {
+        for (int i = 0; i < snapshot.getCount(); ++i) {
+            ByteBuffer header = sendFrameMeta ? createFrameMeta(snapshot.getPresentationTimeUs(i), snapshot.getFlags(i),
+                    snapshot.getNalFlags(i), snapshot.getSize(i)) : null;
+            // not accounted by the bitrate controller, this burst does not reflect the steady state of the link
+            connection.sendVideoPacket(header, snapshot.getData(i), getRelativePts(snapshot.getPresentationTimeUs(i), snapshot.getFlags(i)),
+                    snapshot.getNalFlags(i));
+        }
+    }
+
+    private ByteBuffer createFrameMeta(long presentationTimeUs, int flags, int nalFlags, int packetSize) {
+        headerBuffer.clear();
+
+        long pts = getRelativePts(presentationTimeUs, flags);
+        if (frameMetaFlags) {
+            if (pts == NO_PTS) {
+                pts = PACKET_FLAG_CONFIG; // non-media data packet
+            } else {
+                if ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0 || (nalFlags & NalParser.IDR) != 0) {
+                    pts |= PACKET_FLAG_KEY_FRAME;
+                }
+                if (!NalParser.isReference(nalFlags)) {
+                    pts |= PACKET_FLAG_NON_REFERENCE;
+                }
+            }
+        }
+
+        headerBuffer.putLong(pts);
+        headerBuffer.putInt(packetSize);
+        headerBuffer.flip();
+        return headerBuffer;
+    }
+
+    /**
+     * @return the PTS relative to the first frame, or {@link #NO_PTS} for a non-media data packet
+     */
+    private long getRelativePts(long presentationTimeUs, int flags) {
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return NO_PTS;
+        }
+        return presentationTimeUs - broadcaster.getPtsOrigin();
+    }
+}
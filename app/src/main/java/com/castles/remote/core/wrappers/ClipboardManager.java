@@ -1,7 +1,10 @@
 package com.castles.remote.core.wrappers;
 
+import com.castles.remote.core.Ln;
+
 import android.content.ClipData;
 import android.os.IInterface;
+import android.os.TransactionTooLargeException;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -33,11 +36,21 @@ public class ClipboardManager {
         }
     }
 
-    public void setText(CharSequence text) {
+    /**
+     * @return {@code false} if the text is too large to be transmitted to the clipboard service
+     */
+    public boolean setText(CharSequence text) {
         ClipData clipData = ClipData.newPlainText(null, text);
         try {
             setPrimaryClipMethod.invoke(manager, clipData, "com.android.shell");
-        } catch (InvocationTargetException | IllegalAccessException e) {
+            return true;
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof TransactionTooLargeException) {
+                Ln.w("Clipboard text too large (" + text.length() + " chars)");
+                return false;
+            }
+            throw new AssertionError(e);
+        } catch (IllegalAccessException e) {
             throw new AssertionError(e);
         }
     }
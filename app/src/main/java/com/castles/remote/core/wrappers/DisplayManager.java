@@ -12,17 +12,37 @@ public final class DisplayManager {
         this.manager = manager;
     }
 
-    public DisplayInfo getDisplayInfo() {
+    /**
+     * @return the display info, or {@code null} if the display does not exist
+     */
+    public DisplayInfo getDisplayInfo(int displayId) {
         try {
-            Object displayInfo = manager.getClass().getMethod("getDisplayInfo", int.class).invoke(manager, 0);
+            Object displayInfo = manager.getClass().getMethod("getDisplayInfo", int.class).invoke(manager, displayId);
+            if (displayInfo == null) {
+                return null;
+            }
             Class<?> cls = displayInfo.getClass();
             // width and height already take the rotation into account
             int width = cls.getDeclaredField("logicalWidth").getInt(displayInfo);
             int height = cls.getDeclaredField("logicalHeight").getInt(displayInfo);
             int rotation = cls.getDeclaredField("rotation").getInt(displayInfo);
-            return new DisplayInfo(new Size(width, height), rotation);
+            int layerStack = cls.getDeclaredField("layerStack").getInt(displayInfo);
+            return new DisplayInfo(displayId, new Size(width, height), rotation, layerStack, getPhysicalDisplayId(cls, displayInfo));
         } catch (Exception e) {
             throw new AssertionError(e);
         }
     }
+
+    private static long getPhysicalDisplayId(Class<?> cls, Object displayInfo) {
+        try {
+            // DisplayAddress.Physical, since Android Q
+            Object address = cls.getDeclaredField("address").get(displayInfo);
+            if (address != null) {
+                return (Long) address.getClass().getMethod("getPhysicalDisplayId").invoke(address);
+            }
+        } catch (Exception e) {
+            // not a physical display, or not supported on this Android version
+        }
+        return DisplayInfo.NO_PHYSICAL_DISPLAY_ID;
+    }
 }
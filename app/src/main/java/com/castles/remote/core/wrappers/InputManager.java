@@ -1,5 +1,7 @@
 package com.castles.remote.core.wrappers;
 
+import com.castles.remote.core.Ln;
+
 import android.os.IInterface;
 import android.view.InputEvent;
 
@@ -15,6 +17,10 @@ public final class InputManager {
     private final IInterface manager;
     private final Method injectInputEventMethod;
 
+    // resolved on first use, null if unavailable (the failure is logged only once, not on every event)
+    private static Method setDisplayIdMethod;
+    private static boolean setDisplayIdResolved;
+
     public InputManager(IInterface manager) {
         this.manager = manager;
         try {
@@ -24,6 +30,42 @@ public final class InputManager {
         }
     }
 
+    /**
+     * Target the event to a display other than the default one (hidden method, since Android Q).
+     */
+    public static boolean setDisplayId(InputEvent inputEvent, int displayId) {
+        Method method = getSetDisplayIdMethod();
+        if (method == null) {
+            return false;
+        }
+        try {
+            method.invoke(inputEvent, displayId);
+            return true;
+        } catch (InvocationTargetException | IllegalAccessException e) {
+            disableSetDisplayId(e);
+            return false;
+        }
+    }
+
+    private static synchronized Method getSetDisplayIdMethod() {
+        if (!setDisplayIdResolved) {
+            setDisplayIdResolved = true;
+            try {
+                setDisplayIdMethod = InputEvent.class.getMethod("setDisplayId", int.class);
+            } catch (NoSuchMethodException e) {
+                Ln.e("Could not set the input event display id, the events are not injected", e);
+            }
+        }
+        return setDisplayIdMethod;
+    }
+
+    private static synchronized void disableSetDisplayId(Exception e) {
+        if (setDisplayIdMethod != null) {
+            setDisplayIdMethod = null;
+            Ln.e("Could not set the input event display id, the events are not injected anymore", e);
+        }
+    }
+
     public boolean injectInputEvent(InputEvent inputEvent, int mode) {
         try {
             return (Boolean) injectInputEventMethod.invoke(manager, inputEvent, mode);
@@ -88,6 +88,17 @@ public final class SurfaceControl {
         }
     }
 
+    /**
+     * @return the token of a physical display, since Android Q
+     */
+    public static IBinder getPhysicalDisplayToken(long physicalDisplayId) {
+        try {
+            return (IBinder) CLASS.getMethod("getPhysicalDisplayToken", long.class).invoke(null, physicalDisplayId);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
     public static void setDisplayPowerMode(IBinder displayToken, int mode) {
         try {
             CLASS.getMethod("setDisplayPowerMode", IBinder.class, int.class).invoke(null, displayToken, mode);
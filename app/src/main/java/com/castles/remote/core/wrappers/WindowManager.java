@@ -1,7 +1,7 @@
 package com.castles.remote.core.wrappers;
 
 import android.os.IInterface;
-//import android.view.IRotationWatcher;
+import android.view.IRotationWatcher;
 
 public final class WindowManager {
     private final IInterface manager;
@@ -24,20 +24,36 @@ public final class WindowManager {
             throw new AssertionError(e);
         }
     }
-/*
-    public void registerRotationWatcher(IRotationWatcher rotationWatcher) {
+
+    /**
+     * @return {@code false} if the rotation of this display cannot be watched on this device (only the default display
+     * can be watched before the display parameter was added)
+     */
+    public boolean registerRotationWatcher(IRotationWatcher rotationWatcher, int displayId) {
         try {
             Class<?> cls = manager.getClass();
             try {
-                cls.getMethod("watchRotation", IRotationWatcher.class).invoke(manager, rotationWatcher);
-            } catch (NoSuchMethodException e) {
                 // display parameter added since this commit:
                 // https://android.googlesource.com/platform/frameworks/base/+/35fa3c26adcb5f6577849fd0df5228b1f67cf2c6%5E%21/#F1
-                cls.getMethod("watchRotation", IRotationWatcher.class, int.class).invoke(manager, rotationWatcher, 0);
+                cls.getMethod("watchRotation", IRotationWatcher.class, int.class).invoke(manager, rotationWatcher, displayId);
+            } catch (NoSuchMethodException e) {
+                if (displayId != 0) {
+                    // the old method would watch the default display instead
+                    return false;
+                }
+                cls.getMethod("watchRotation", IRotationWatcher.class).invoke(manager, rotationWatcher);
             }
+            return true;
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void removeRotationWatcher(IRotationWatcher rotationWatcher) {
+        try {
+            manager.getClass().getMethod("removeRotationWatcher", IRotationWatcher.class).invoke(manager, rotationWatcher);
         } catch (Exception e) {
             throw new AssertionError(e);
         }
     }
-    */
 }
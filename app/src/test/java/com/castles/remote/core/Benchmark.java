@@ -0,0 +1,9 @@
+package com.castles.remote.core;
+
+/**
+ * JUnit category of the benchmarks, which measure wall-clock time and only report it.
+ * <p>
+ * They are excluded from the unit tests, run them with {@code ./gradlew testDebugUnitTest -Pbenchmark}.
+ */
+public interface Benchmark {
+}
@@ -0,0 +1,52 @@
+package com.castles.remote.core;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+@Category(Benchmark.class)
+public class ControlMessageReaderBenchmark {
+
+    @Test
+    public void benchmarkChunkedTextAtMaxLength() throws IOException {
+        byte[] raw = new byte[ControlMessageReader.CHUNKED_TEXT_MAX_LENGTH];
+        Arrays.fill(raw, (byte) 'x');
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        ControlMessageReaderTest.writeChunkedText(dos, ControlMessage.TYPE_SET_CLIPBOARD, raw, ControlMessageReader.TEXT_CHUNK_MAX_LENGTH);
+        byte[] data = bos.toByteArray();
+
+        // warm up
+        for (int i = 0; i < 20; ++i) {
+            assertEquals(raw.length, transfer(data).getText().length());
+        }
+        int rounds = 50;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i) {
+            assertEquals(raw.length, transfer(data).getText().length());
+        }
+        long elapsedNs = System.nanoTime() - start;
+        double bytesPerSecond = (double) rounds * raw.length / (elapsedNs / 1e9);
+
+        System.out.println("Chunked text of " + raw.length + " bytes: " + elapsedNs / rounds / 1000 + " µs per transfer ("
+                + (long) (bytesPerSecond / 1e6) + " MB/s)");
+    }
+
+    private static ControlMessage transfer(byte[] data) throws IOException {
+        ControlMessageReader reader = new ControlMessageReader();
+        ByteArrayInputStream input = new ByteArrayInputStream(data);
+        ControlMessage msg = reader.next();
+        while (msg == null) {
+            reader.readFrom(input);
+            msg = reader.next();
+        }
+        return msg;
+    }
+}
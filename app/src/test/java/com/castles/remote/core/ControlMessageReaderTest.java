@@ -0,0 +1,531 @@
+package com.castles.remote.core;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ControlMessageReaderTest {
+
+    private static final int ACTION_DOWN = 0;
+    private static final int ACTION_UP = 1;
+    private static final int ACTION_MOVE = 2;
+
+    @Test
+    public void testParseMouseEvent() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeMouseEvent(dos, ACTION_MOVE, 100, 200);
+
+        ControlMessage msg = readSingle(bos.toByteArray());
+        assertEquals(ControlMessage.TYPE_INJECT_MOUSE_EVENT, msg.getType());
+        assertEquals(ACTION_MOVE, msg.getAction());
+        assertEquals(100, msg.getX());
+        assertEquals(200, msg.getY());
+        assertEquals(1080, msg.getScreenWidth());
+        assertEquals(1920, msg.getScreenHeight());
+    }
+
+    @Test
+    public void testParseTextIsOverwrittenByNextMessage() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeText(dos, ControlMessage.TYPE_INJECT_TEXT, "héllo");
+        writeText(dos, ControlMessage.TYPE_SET_CLIPBOARD, "wörld");
+
+        ControlMessageReader reader = new ControlMessageReader();
+        reader.readFrom(new ByteArrayInputStream(bos.toByteArray()));
+        ControlMessage first = reader.next();
+        assertEquals(ControlMessage.TYPE_INJECT_TEXT, first.getType());
+        assertEquals("héllo", first.getText().toString());
+        ControlMessage second = reader.next();
+        // a single instance is reused
+        assertSame(first, second);
+        assertEquals(ControlMessage.TYPE_SET_CLIPBOARD, second.getType());
+        assertEquals("wörld", second.getText().toString());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void testSteadyStateDecodingDoesNotAllocate() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("Allocation counters not available on this JVM", bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeMouseEvent(dos, ACTION_DOWN, 10, 20);
+        for (int i = 0; i < 20; ++i) {
+            writeMouseEvent(dos, ACTION_MOVE, 10 + i, 20 + i);
+        }
+        writeMouseEvent(dos, ACTION_UP, 30, 40);
+        writeScrollEvent(dos, 50, 60, 0, -1);
+        writeKeycode(dos, ACTION_DOWN, 29);
+        writeText(dos, ControlMessage.TYPE_INJECT_TEXT, "abc, déjà vu");
+        byte[] data = bos.toByteArray();
+        int messagesPerRound = 25;
+
+        ControlMessageReader reader = new ControlMessageReader();
+        ByteArrayInputStream input = new ByteArrayInputStream(data);
+
+        // warm up (class loading, JIT compilation)
+        decode(reader, input, 10_000 * messagesPerRound);
+
+        long threadId = Thread.currentThread().getId();
+        int count = 100_000 * messagesPerRound;
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        long checksum = decode(reader, input, count);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(checksum != 0);
+        // a single allocation per message would be at least 16 bytes per message; only the measurement itself may
+        // allocate a few bytes
+        assertTrue("Allocated " + allocated + " bytes for " + count + " messages", allocated < 16 * 1024);
+    }
+
+    @Test
+    public void testClipboardLargerThanInitialBuffer() throws IOException {
+        // the largest single message does not fit in the initial 1 KiB buffer
+        String text = repeat('x', ControlMessageReader.CLIPBOARD_TEXT_MAX_LENGTH);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeText(dos, ControlMessage.TYPE_SET_CLIPBOARD, text);
+        assertEquals(ControlMessageReader.MESSAGE_MAX_SIZE, bos.size());
+        writeKeycode(dos, ACTION_DOWN, 29);
+
+        ControlMessageReader reader = new ControlMessageReader();
+        InputStream input = new ByteArrayInputStream(bos.toByteArray());
+        ControlMessage msg = next(reader, input);
+        assertEquals(ControlMessage.TYPE_SET_CLIPBOARD, msg.getType());
+        assertEquals(text, msg.getText().toString());
+        assertEquals(ControlMessage.TYPE_INJECT_KEYCODE, next(reader, input).getType());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMessageLargerThanMaxSizeIsRejected() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeText(dos, ControlMessage.TYPE_SET_CLIPBOARD, repeat('x', ControlMessageReader.MESSAGE_MAX_SIZE));
+
+        ControlMessageReader reader = new ControlMessageReader();
+        next(reader, new ByteArrayInputStream(bos.toByteArray()));
+    }
+
+    @Test
+    public void testChunkedTextSplitAcrossReads() throws IOException {
+        String text = repeat('a', 10_000) + repeat('b', 10_000);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeChunkedText(dos, ControlMessage.TYPE_SET_CLIPBOARD, text.getBytes(StandardCharsets.UTF_8),
+                ControlMessageReader.TEXT_CHUNK_MAX_LENGTH);
+        writeKeycode(dos, ACTION_DOWN, 29);
+
+        ControlMessageReader reader = new ControlMessageReader();
+        // every chunk header and payload is split across several reads
+        InputStream input = new ThrottledInputStream(bos.toByteArray(), 7);
+        ControlMessage msg = next(reader, input);
+        assertEquals(ControlMessage.TYPE_SET_CLIPBOARD, msg.getType());
+        assertEquals(text, msg.getText().toString());
+        assertEquals(ControlMessage.TYPE_INJECT_KEYCODE, next(reader, input).getType());
+    }
+
+    @Test
+    public void testChunkedTextWithInterleavedMessages() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeTextChunk(dos, ControlMessage.TYPE_INJECT_TEXT, false, "hello ".getBytes(StandardCharsets.UTF_8));
+        writeMouseEvent(dos, ACTION_MOVE, 1, 2);
+        writeTextChunk(dos, ControlMessage.TYPE_INJECT_TEXT, true, "world".getBytes(StandardCharsets.UTF_8));
+
+        ControlMessageReader reader = new ControlMessageReader();
+        InputStream input = new ByteArrayInputStream(bos.toByteArray());
+        assertEquals(ControlMessage.TYPE_INJECT_MOUSE_EVENT, next(reader, input).getType());
+        ControlMessage msg = next(reader, input);
+        assertEquals(ControlMessage.TYPE_INJECT_TEXT, msg.getType());
+        assertEquals("hello world", msg.getText().toString());
+    }
+
+    @Test
+    public void testMultiByteCharacterSplitAcrossChunks() throws IOException {
+        byte[] raw = "a€b".getBytes(StandardCharsets.UTF_8);
+        assertEquals(5, raw.length);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        // "a" and the first byte of "€", then the 2 other bytes of "€" and "b"
+        writeTextChunk(dos, ControlMessage.TYPE_SET_CLIPBOARD, false, Arrays.copyOfRange(raw, 0, 2));
+        writeTextChunk(dos, ControlMessage.TYPE_SET_CLIPBOARD, true, Arrays.copyOfRange(raw, 2, 5));
+
+        ControlMessage msg = readSingle(bos.toByteArray());
+        assertEquals(ControlMessage.TYPE_SET_CLIPBOARD, msg.getType());
+        assertEquals("a€b", msg.getText().toString());
+    }
+
+    @Test
+    public void testChunkedTextLargerThanMaxIsDiscarded() throws IOException {
+        byte[] raw = repeat('x', ControlMessageReader.CHUNKED_TEXT_MAX_LENGTH + 1).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeChunkedText(dos, ControlMessage.TYPE_SET_CLIPBOARD, raw, ControlMessageReader.TEXT_CHUNK_MAX_LENGTH);
+        // the following transfer is not affected
+        writeChunkedText(dos, ControlMessage.TYPE_SET_CLIPBOARD, "ok".getBytes(StandardCharsets.UTF_8),
+                ControlMessageReader.TEXT_CHUNK_MAX_LENGTH);
+
+        ControlMessageReader reader = new ControlMessageReader();
+        InputStream input = new ByteArrayInputStream(bos.toByteArray());
+        ControlMessage msg = next(reader, input);
+        assertEquals(ControlMessage.TYPE_SET_CLIPBOARD, msg.getType());
+        assertEquals("ok", msg.getText().toString());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void testChunkedTextAtMaxLength() throws IOException {
+        byte[] raw = repeat('x', ControlMessageReader.CHUNKED_TEXT_MAX_LENGTH).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeChunkedText(dos, ControlMessage.TYPE_SET_CLIPBOARD, raw, ControlMessageReader.TEXT_CHUNK_MAX_LENGTH);
+
+        ControlMessageReader reader = new ControlMessageReader();
+        ControlMessage msg = next(reader, new ByteArrayInputStream(bos.toByteArray()));
+        assertEquals(ControlMessage.TYPE_SET_CLIPBOARD, msg.getType());
+        assertEquals(raw.length, msg.getText().length());
+        assertEquals(new String(raw, StandardCharsets.UTF_8), msg.getText().toString());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void testParseTouchMoveBatch() throws IOException {
+        int sampleCount = 16;
+        int[] times = new int[sampleCount];
+        int[] xs = new int[sampleCount];
+        int[] ys = new int[sampleCount];
+        for (int i = 0; i < sampleCount; ++i) {
+            // 8 ms between samples (120 Hz)
+            times[i] = i * 8;
+            xs[i] = 100 + 3 * i;
+            ys[i] = 2000 - 5 * i;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeTouchMoveBatch(dos, 42, times, xs, ys);
+        // header (14 bytes) and 12 bytes per sample
+        assertEquals(14 + 12 * sampleCount, bos.size());
+
+        ControlMessage msg = readSingle(bos.toByteArray());
+        assertEquals(ControlMessage.TYPE_INJECT_TOUCH_MOVE_BATCH, msg.getType());
+        assertEquals(ACTION_MOVE, msg.getAction());
+        assertEquals(42, msg.getPointerId());
+        assertEquals(1080, msg.getScreenWidth());
+        assertEquals(1920, msg.getScreenHeight());
+        assertEquals(sampleCount, msg.getSampleCount());
+        for (int i = 0; i < sampleCount; ++i) {
+            assertEquals(times[i], msg.getSampleTime(i));
+            assertEquals(xs[i], msg.getSampleX(i));
+            assertEquals(ys[i], msg.getSampleY(i));
+            assertEquals(1f, msg.getSamplePressure(i), 0f);
+            if (i > 0) {
+                assertTrue(msg.getSampleTime(i) > msg.getSampleTime(i - 1));
+            }
+        }
+
+        // the sample times mapped to the uptime are monotonic, the last sample being now
+        long now = 1_000_000;
+        long previous = 0;
+        for (int i = 0; i < sampleCount; ++i) {
+            long eventTime = Controller.getSampleEventTime(now, msg.getSampleTime(sampleCount - 1), msg.getSampleTime(i), previous);
+            assertEquals(now - 8 * (sampleCount - 1 - i), eventTime);
+            previous = eventTime;
+        }
+        assertEquals(now, previous);
+    }
+
+    @Test
+    public void testTouchMoveBatchTooLargeIsIgnored() throws IOException {
+        int sampleCount = ControlMessage.MAX_BATCH_SAMPLES + 1;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeTouchMoveBatch(dos, 1, new int[sampleCount], new int[sampleCount], new int[sampleCount]);
+        writeKeycode(dos, ACTION_DOWN, 29);
+
+        ControlMessageReader reader = new ControlMessageReader();
+        InputStream input = new ByteArrayInputStream(bos.toByteArray());
+        ControlMessage msg = next(reader, input);
+        // consumed, but without any sample to inject
+        assertEquals(ControlMessage.TYPE_INJECT_TOUCH_MOVE_BATCH, msg.getType());
+        assertEquals(0, msg.getSampleCount());
+        assertEquals(ControlMessage.TYPE_INJECT_KEYCODE, next(reader, input).getType());
+    }
+
+    @Test
+    public void testTouchMoveSupersededBySamePointer() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeTouchEvent(dos, ACTION_MOVE, 1, 10, 10);
+        writeTouchEvent(dos, ACTION_MOVE, 1, 20, 20);
+
+        ControlMessageReader reader = readAll(bos.toByteArray());
+        assertTrue(reader.isMoveSuperseded(reader.next()));
+        // the last move is never superseded
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+    }
+
+    @Test
+    public void testTouchMoveNotCoalescedAcrossUpAndDown() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeTouchEvent(dos, ACTION_MOVE, 1, 10, 10);
+        writeTouchEvent(dos, ACTION_UP, 1, 10, 10);
+        writeTouchEvent(dos, ACTION_DOWN, 1, 30, 30);
+        writeTouchEvent(dos, ACTION_MOVE, 1, 40, 40);
+
+        ControlMessageReader reader = readAll(bos.toByteArray());
+        // the move before the up must be injected
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+        // up and down are never superseded
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+    }
+
+    @Test
+    public void testTouchMoveNotCoalescedAcrossDownOfSamePointer() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeTouchEvent(dos, ACTION_MOVE, 1, 10, 10);
+        writeTouchEvent(dos, ACTION_DOWN, 1, 30, 30);
+        writeTouchEvent(dos, ACTION_MOVE, 1, 40, 40);
+
+        ControlMessageReader reader = readAll(bos.toByteArray());
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+    }
+
+    @Test
+    public void testMoveNotCoalescedAcrossNonTouchMessage() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeTouchEvent(dos, ACTION_MOVE, 1, 10, 10);
+        writeKeycode(dos, ACTION_DOWN, 29);
+        writeTouchEvent(dos, ACTION_MOVE, 1, 20, 20);
+        writeMouseEvent(dos, ACTION_MOVE, 10, 10);
+        writeScrollEvent(dos, 10, 10, 0, 1);
+        writeMouseEvent(dos, ACTION_MOVE, 20, 20);
+
+        ControlMessageReader reader = readAll(bos.toByteArray());
+        // the order relative to the key event must be preserved
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+        // same for the scroll event
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+    }
+
+    @Test
+    public void testMovesOfDifferentPointersAreNotMerged() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeTouchEvent(dos, ACTION_MOVE, 1, 10, 10);
+        writeTouchEvent(dos, ACTION_MOVE, 2, 20, 20);
+        // the mouse pointer is distinct from any finger
+        writeMouseEvent(dos, ACTION_MOVE, 30, 30);
+
+        ControlMessageReader reader = readAll(bos.toByteArray());
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+    }
+
+    @Test
+    public void testMoveSupersededAcrossMovesOfOtherPointers() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeTouchEvent(dos, ACTION_MOVE, 1, 10, 10);
+        writeTouchEvent(dos, ACTION_MOVE, 2, 20, 20);
+        writeTouchMoveBatch(dos, 1, new int[] {0, 8}, new int[] {11, 12}, new int[] {11, 12});
+        writeMouseEvent(dos, ACTION_MOVE, 30, 30);
+        writeMouseEvent(dos, ACTION_MOVE, 40, 40);
+
+        ControlMessageReader reader = readAll(bos.toByteArray());
+        // superseded by the batch of the same pointer
+        assertTrue(reader.isMoveSuperseded(reader.next()));
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+        assertTrue(reader.isMoveSuperseded(reader.next()));
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+    }
+
+    @Test
+    public void testMoveNotSupersededByIncompleteMessage() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeTouchEvent(dos, ACTION_MOVE, 1, 10, 10);
+        writeTouchEvent(dos, ACTION_MOVE, 1, 20, 20);
+        byte[] data = bos.toByteArray();
+
+        // the second move is not fully received
+        ControlMessageReader reader = readAll(Arrays.copyOf(data, data.length - 1));
+        assertFalse(reader.isMoveSuperseded(reader.next()));
+        assertNull(reader.next());
+    }
+
+    private static ControlMessageReader readAll(byte[] data) throws IOException {
+        ControlMessageReader reader = new ControlMessageReader();
+        reader.readFrom(new ByteArrayInputStream(data));
+        return reader;
+    }
+
+    private static ControlMessage next(ControlMessageReader reader, InputStream input) throws IOException {
+        ControlMessage msg = reader.next();
+        while (msg == null) {
+            reader.readFrom(input);
+            msg = reader.next();
+        }
+        return msg;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    /**
+     * Decode {@code count} messages from the input, replayed from the start whenever it is exhausted.
+     *
+     * @return a value depending on all the decoded fields, so that the decoding cannot be optimized away
+     */
+    private static long decode(ControlMessageReader reader, ByteArrayInputStream input, int count) throws IOException {
+        long checksum = 0;
+        for (int i = 0; i < count; ++i) {
+            ControlMessage msg = reader.next();
+            while (msg == null) {
+                if (input.available() == 0) {
+                    input.reset();
+                }
+                reader.readFrom(input);
+                msg = reader.next();
+            }
+            checksum += msg.getType() + msg.getAction() + msg.getX() + msg.getY() + msg.getHScroll() + msg.getVScroll()
+                    + msg.getKeycode();
+            if (msg.getType() == ControlMessage.TYPE_INJECT_TEXT) {
+                CharSequence text = msg.getText();
+                for (int j = 0; j < text.length(); ++j) {
+                    checksum += text.charAt(j);
+                }
+            }
+        }
+        return checksum;
+    }
+
+    static ControlMessage readSingle(byte[] data) throws IOException {
+        ControlMessageReader reader = new ControlMessageReader();
+        reader.readFrom(new ByteArrayInputStream(data));
+        ControlMessage msg = reader.next();
+        assertNotNull(msg);
+        // the whole message must have been consumed
+        assertNull(reader.next());
+        return msg;
+    }
+
+    static void writeKeycode(DataOutputStream dos, int action, int keycode) throws IOException {
+        dos.writeByte(ControlMessage.TYPE_INJECT_KEYCODE);
+        dos.writeByte(action);
+        dos.writeInt(keycode);
+        dos.writeInt(0); // meta state
+    }
+
+    static void writeText(DataOutputStream dos, int type, String text) throws IOException {
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        dos.writeByte(type);
+        dos.writeShort(raw.length);
+        dos.write(raw);
+    }
+
+    static void writeTextChunk(DataOutputStream dos, int type, boolean last, byte[] raw) throws IOException {
+        dos.writeByte(ControlMessage.TYPE_TEXT_CHUNK);
+        dos.writeByte(type);
+        dos.writeByte(last ? ControlMessage.TEXT_CHUNK_LAST : 0);
+        dos.writeShort(raw.length);
+        dos.write(raw);
+    }
+
+    static void writeChunkedText(DataOutputStream dos, int type, byte[] raw, int chunkSize) throws IOException {
+        for (int offset = 0; offset < raw.length; offset += chunkSize) {
+            int end = Math.min(offset + chunkSize, raw.length);
+            writeTextChunk(dos, type, end == raw.length, Arrays.copyOfRange(raw, offset, end));
+        }
+    }
+
+    static void writeMouseEvent(DataOutputStream dos, int action, int x, int y) throws IOException {
+        dos.writeByte(ControlMessage.TYPE_INJECT_MOUSE_EVENT);
+        dos.writeByte(action);
+        dos.writeInt(1); // buttons
+        dos.writeInt(x);
+        dos.writeInt(y);
+        dos.writeShort(1080);
+        dos.writeShort(1920);
+    }
+
+    static void writeTouchEvent(DataOutputStream dos, int action, long pointerId, int x, int y) throws IOException {
+        dos.writeByte(ControlMessage.TYPE_INJECT_TOUCH_EVENT);
+        dos.writeByte(action);
+        dos.writeLong(pointerId);
+        dos.writeInt(x);
+        dos.writeInt(y);
+        dos.writeShort(1080);
+        dos.writeShort(1920);
+        dos.writeShort(0xffff); // pressure 1.0
+        dos.writeInt(0); // buttons
+    }
+
+    static void writeTouchMoveBatch(DataOutputStream dos, long pointerId, int[] times, int[] xs, int[] ys) throws IOException {
+        dos.writeByte(ControlMessage.TYPE_INJECT_TOUCH_MOVE_BATCH);
+        dos.writeLong(pointerId);
+        dos.writeShort(1080);
+        dos.writeShort(1920);
+        dos.writeByte(times.length);
+        for (int i = 0; i < times.length; ++i) {
+            dos.writeShort(times[i]);
+            dos.writeInt(xs[i]);
+            dos.writeInt(ys[i]);
+            dos.writeShort(0xffff); // pressure 1.0
+        }
+    }
+
+    static void writeScrollEvent(DataOutputStream dos, int x, int y, int hScroll, int vScroll) throws IOException {
+        dos.writeByte(ControlMessage.TYPE_INJECT_SCROLL_EVENT);
+        dos.writeInt(x);
+        dos.writeInt(y);
+        dos.writeShort(1080);
+        dos.writeShort(1920);
+        dos.writeInt(hScroll);
+        dos.writeInt(vScroll);
+    }
+
+    /**
+     * Return at most {@code maxRead} bytes per read, like a socket receiving small segments.
+     */
+    private static final class ThrottledInputStream extends ByteArrayInputStream {
+        private final int maxRead;
+
+        ThrottledInputStream(byte[] data, int maxRead) {
+            super(data);
+            this.maxRead = maxRead;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, maxRead));
+        }
+    }
+}
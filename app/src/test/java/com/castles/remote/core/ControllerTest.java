@@ -0,0 +1,46 @@
+package com.castles.remote.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ControllerTest {
+
+    @Test
+    public void testSampleEventTimes() {
+        long now = 10_000;
+        int[] sampleTimes = {0, 8, 16, 24};
+        long previous = 0;
+        for (int i = 0; i < sampleTimes.length; ++i) {
+            long eventTime = Controller.getSampleEventTime(now, sampleTimes[sampleTimes.length - 1], sampleTimes[i], previous);
+            // the intervals between the client samples are kept, the last sample is now
+            assertEquals(now - 24 + sampleTimes[i], eventTime);
+            previous = eventTime;
+        }
+    }
+
+    @Test
+    public void testSampleEventTimesAreMonotonic() {
+        long now = 10_000;
+        // the client timestamps go backwards then forwards beyond the last sample
+        int[] sampleTimes = {0, 20, 10, 40, 30};
+        int lastSampleTime = sampleTimes[sampleTimes.length - 1];
+        long previous = now - 1000; // the last touch down
+        for (int sampleTime : sampleTimes) {
+            long eventTime = Controller.getSampleEventTime(now, lastSampleTime, sampleTime, previous);
+            assertTrue(eventTime >= previous);
+            // never in the future
+            assertTrue(eventTime <= now);
+            previous = eventTime;
+        }
+        assertEquals(now, previous);
+    }
+
+    @Test
+    public void testSampleEventTimeNotBeforeTouchDown() {
+        long now = 10_000;
+        long touchDown = now - 5;
+        // the first sample would be 100 ms ago, before the touch down
+        assertEquals(touchDown, Controller.getSampleEventTime(now, 100, 0, touchDown));
+    }
+}
@@ -0,0 +1,37 @@
+package com.castles.remote.core;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+@Category(Benchmark.class)
+public class NalParserBenchmark {
+
+    @Test
+    public void benchmarkFullScan() {
+        // worst case: a packet without any slice is scanned entirely (a real packet is only scanned up to its first slice)
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4 * 1024 * 1024);
+        for (int i = 0; i < buffer.capacity(); ++i) {
+            // no start code, but many zeros to exercise the slow path
+            buffer.put(i, (byte) (i % 3 == 0 ? 0 : i));
+        }
+
+        // warm up
+        for (int i = 0; i < 20; ++i) {
+            NalParser.parse(buffer, 0, VideoCodec.H264);
+        }
+        int rounds = 50;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i) {
+            assertEquals(NalParser.REFERENCE, NalParser.parse(buffer, 0, VideoCodec.H264));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double bitsPerSecond = 8.0 * rounds * buffer.capacity() / seconds;
+
+        // a 4K60 stream is below 100 Mbps
+        System.out.println("NalParser full scan: " + (long) (bitsPerSecond / 1e6) + " Mbps");
+    }
+}
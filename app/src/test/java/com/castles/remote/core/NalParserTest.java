@@ -0,0 +1,176 @@
+package com.castles.remote.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class NalParserTest {
+
+    // MediaCodec.BUFFER_FLAG_KEY_FRAME and BUFFER_FLAG_CODEC_CONFIG
+    private static final int BUFFER_FLAG_KEY_FRAME = 1;
+    private static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+
+    private static final byte[] START_CODE_3 = {0, 0, 1};
+    private static final byte[] START_CODE_4 = {0, 0, 0, 1};
+
+    @Test
+    public void testFindNalUnitWith3And4ByteStartCodes() {
+        ByteBuffer buffer = packet(START_CODE_4, nal(0x67, 5), START_CODE_3, nal(0x68, 3), START_CODE_4, nal(0x65, 8));
+        int limit = buffer.limit();
+
+        int first = NalParser.findNalUnit(buffer, 0, limit);
+        assertEquals(4, first);
+        assertEquals(0x67, buffer.get(first) & 0xff);
+
+        int second = NalParser.findNalUnit(buffer, first, limit);
+        assertEquals(4 + 5 + 3, second);
+        assertEquals(0x68, buffer.get(second) & 0xff);
+
+        int third = NalParser.findNalUnit(buffer, second, limit);
+        assertEquals(4 + 5 + 3 + 3 + 4, third);
+        assertEquals(0x65, buffer.get(third) & 0xff);
+
+        assertEquals(-1, NalParser.findNalUnit(buffer, third, limit));
+    }
+
+    @Test
+    public void testFindNalUnitIgnoresStartCodeWithoutHeader() {
+        // a start code at the very end has no NAL header
+        ByteBuffer buffer = packet(new byte[] {0x12, 0x34}, START_CODE_3);
+        assertEquals(-1, NalParser.findNalUnit(buffer, 0, buffer.limit()));
+    }
+
+    @Test
+    public void testFindNalUnitIgnoresZerosWithoutStartCode() {
+        ByteBuffer buffer = packet(new byte[] {0, 0, 2, 0, 0, 0, 0, 3, 1, 0, 0});
+        assertEquals(-1, NalParser.findNalUnit(buffer, 0, buffer.limit()));
+    }
+
+    @Test
+    public void testAvcKeyFrameWithParameterSets() {
+        ByteBuffer buffer = packet(START_CODE_4, nal(0x67, 10), START_CODE_4, nal(0x68, 4), START_CODE_3, nal(0x06, 6),
+                START_CODE_3, nal(0x65, 100));
+        int flags = NalParser.parse(buffer, BUFFER_FLAG_KEY_FRAME, VideoCodec.H264);
+        assertEquals(NalParser.SPS | NalParser.PPS | NalParser.SEI | NalParser.IDR | NalParser.REFERENCE, flags);
+        assertTrue(NalParser.isReference(flags));
+        // the buffer position must not change
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void testAvcReferenceSlice() {
+        // nal_ref_idc = 2, type 1
+        ByteBuffer buffer = packet(START_CODE_4, nal(0x41, 50));
+        int flags = NalParser.parse(buffer, 0, VideoCodec.H264);
+        assertEquals(NalParser.NON_IDR | NalParser.REFERENCE, flags);
+    }
+
+    @Test
+    public void testAvcNonReferenceSlice() {
+        // nal_ref_idc = 0, type 1
+        ByteBuffer buffer = packet(START_CODE_3, nal(0x01, 50));
+        int flags = NalParser.parse(buffer, 0, VideoCodec.H264);
+        assertEquals(NalParser.NON_IDR, flags);
+        assertFalse(NalParser.isReference(flags));
+    }
+
+    @Test
+    public void testAvcCodecConfig() {
+        ByteBuffer buffer = packet(START_CODE_4, nal(0x67, 10), START_CODE_4, nal(0x68, 4));
+        int flags = NalParser.parse(buffer, BUFFER_FLAG_CODEC_CONFIG, VideoCodec.H264);
+        assertEquals(NalParser.SPS | NalParser.PPS | NalParser.REFERENCE, flags);
+    }
+
+    @Test
+    public void testAvcScanStopsAtFirstSlice() {
+        // the SPS after the slice is not reached (it cannot occur in a valid access unit)
+        ByteBuffer buffer = packet(START_CODE_3, nal(0x01, 20), START_CODE_3, nal(0x67, 10));
+        assertEquals(NalParser.NON_IDR, NalParser.parse(buffer, 0, VideoCodec.H264));
+    }
+
+    @Test
+    public void testKeyFrameFlagForcesReference() {
+        // the buffer flags are trusted over the bitstream
+        ByteBuffer buffer = packet(START_CODE_3, nal(0x01, 20));
+        int flags = NalParser.parse(buffer, BUFFER_FLAG_KEY_FRAME, VideoCodec.H264);
+        assertTrue(NalParser.isReference(flags));
+    }
+
+    @Test
+    public void testUnclassifiedPacketIsReference() {
+        ByteBuffer buffer = packet(new byte[] {0x12, 0x34, 0x56, 0x78});
+        assertEquals(NalParser.REFERENCE, NalParser.parse(buffer, 0, VideoCodec.H264));
+    }
+
+    @Test
+    public void testParseFromBufferPosition() {
+        // the bytes before the position are ignored
+        ByteBuffer buffer = packet(START_CODE_3, nal(0x65, 10), START_CODE_3, nal(0x01, 10));
+        buffer.position(3 + 10);
+        assertEquals(NalParser.NON_IDR, NalParser.parse(buffer, 0, VideoCodec.H264));
+        assertEquals(13, buffer.position());
+    }
+
+    @Test
+    public void testHevcKeyFrameWithParameterSets() {
+        // VPS (32), SPS (33), PPS (34), prefix SEI (39), IDR_W_RADL (19)
+        ByteBuffer buffer = packet(START_CODE_4, hevcNal(32, 10), START_CODE_4, hevcNal(33, 20), START_CODE_4, hevcNal(34, 5),
+                START_CODE_3, hevcNal(39, 6), START_CODE_3, hevcNal(19, 100));
+        int flags = NalParser.parse(buffer, BUFFER_FLAG_KEY_FRAME, VideoCodec.H265);
+        assertEquals(NalParser.VPS | NalParser.SPS | NalParser.PPS | NalParser.SEI | NalParser.IDR | NalParser.REFERENCE, flags);
+    }
+
+    @Test
+    public void testHevcCraIsRandomAccess() {
+        // CRA_NUT (21) is an IRAP picture
+        ByteBuffer buffer = packet(START_CODE_4, hevcNal(21, 100));
+        assertEquals(NalParser.IDR | NalParser.REFERENCE, NalParser.parse(buffer, 0, VideoCodec.H265));
+    }
+
+    @Test
+    public void testHevcReferenceAndNonReferencePictures() {
+        // TRAIL_R (1) is a reference picture, TRAIL_N (0) and TSA_N (2) are sub-layer non-reference pictures
+        assertEquals(NalParser.NON_IDR | NalParser.REFERENCE, NalParser.parse(packet(START_CODE_4, hevcNal(1, 50)), 0, VideoCodec.H265));
+        assertEquals(NalParser.NON_IDR, NalParser.parse(packet(START_CODE_4, hevcNal(0, 50)), 0, VideoCodec.H265));
+        assertEquals(NalParser.NON_IDR, NalParser.parse(packet(START_CODE_3, hevcNal(2, 50)), 0, VideoCodec.H265));
+    }
+
+    @Test
+    public void testAvcHeaderIsNotClassifiedAsHevc() {
+        // 0x67 is an AVC SPS, but an HEVC type 51 (reserved)
+        ByteBuffer buffer = packet(START_CODE_4, nal(0x67, 10));
+        assertEquals(NalParser.REFERENCE, NalParser.parse(buffer, 0, VideoCodec.H265));
+    }
+
+    private static byte[] nal(int header, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) header;
+        for (int i = 1; i < size; ++i) {
+            // no zero, so that no start code can be emulated
+            nal[i] = (byte) (0x80 | i);
+        }
+        return nal;
+    }
+
+    private static byte[] hevcNal(int type, int size) {
+        byte[] nal = nal(type << 1, size);
+        // nuh_layer_id = 0, nuh_temporal_id_plus1 = 1
+        nal[1] = 1;
+        return nal;
+    }
+
+    private static ByteBuffer packet(byte[]... parts) {
+        int size = 0;
+        for (byte[] part : parts) {
+            size += part.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] part : parts) {
+            buffer.put(part);
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,503 @@
+package com.castles.remote.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Send the video over a loopback UDP socket, drop some packets on reception, and check that they are repaired.
+ */
+public class RtpSenderTest {
+
+    private static final int FEC_GROUP_SIZE = 8;
+    // a 4000-byte NAL unit is split into 4 fragmentation units, so each frame flushes a partial FEC group
+    private static final int NAL_SIZE = 4000;
+    private static final int PACKETS_PER_FRAME = 4;
+    private static final int AVC_IDR = 0x65;
+    private static final int AVC_SLICE = 0x41;
+    private static final int KEY_FRAME_FLAGS = NalParser.IDR | NalParser.REFERENCE;
+    private static final int FRAME_FLAGS = NalParser.NON_IDR | NalParser.REFERENCE;
+    private static final int RECEIVE_TIMEOUT = 2000; // ms
+
+    private DatagramChannel channel;
+    private RtpSender sender;
+    private Receiver receiver;
+
+    @Before
+    public void setUp() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(loopback, 0));
+        channel.socket().setReceiveBufferSize(4 * 1024 * 1024);
+        channel.socket().setSoTimeout(RECEIVE_TIMEOUT);
+        sender = new RtpSender(loopback, channel.socket().getLocalPort(), VideoCodec.H264, FEC_GROUP_SIZE);
+        receiver = new Receiver(channel);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        sender.close();
+        channel.close();
+    }
+
+    @Test
+    public void testFecRecoversOneLossPerGroup() throws IOException {
+        int frameCount = 8;
+        byte[][] nals = new byte[frameCount][];
+        for (int i = 0; i < frameCount; ++i) {
+            nals[i] = nal(AVC_SLICE, i);
+            sender.send(annexB(nals[i]), i * 16_666L, FRAME_FLAGS);
+        }
+
+        // drop the 2nd packet of every frame
+        receiver.setLossPolicy(seq -> seq % PACKETS_PER_FRAME == 1);
+        receiver.receiveUntilComplete(frameCount * PACKETS_PER_FRAME);
+
+        assertEquals(frameCount, receiver.droppedCount);
+        assertEquals(receiver.droppedCount, receiver.fecRecoveredCount);
+        assertEquals(0, receiver.retransmittedCount);
+        // the group is flushed at the end of each frame, before it is full
+        assertEquals(frameCount, receiver.fecPacketCount);
+        for (int i = 0; i < frameCount; ++i) {
+            assertArrayEquals(nals[i], receiver.depacketize(i * PACKETS_PER_FRAME, PACKETS_PER_FRAME));
+        }
+    }
+
+    @Test
+    public void testFecProtectsFullAndTrailingPartialGroupsOfAFrame() throws IOException {
+        // split into 9 fragmentation units: a full group of 8, then a partial group of 1
+        byte[] nal = nal(AVC_SLICE, 0, 10000);
+        int packetCount = 9;
+        sender.send(annexB(nal), 0, FRAME_FLAGS);
+
+        receiver.setLossPolicy(seq -> seq == 2 || seq == 8);
+        receiver.receiveUntilComplete(packetCount);
+
+        assertEquals(2, receiver.droppedCount);
+        assertEquals(2, receiver.fecRecoveredCount);
+        assertEquals(2, receiver.fecPacketCount);
+        assertEquals(0, receiver.nackCount);
+        assertArrayEquals(nal, receiver.depacketize(0, packetCount));
+    }
+
+    @Test
+    public void testLastFrameProtectedWithoutFollowingFrames() throws IOException {
+        // a single 3-packet non-key frame, then nothing (static screen): the group must not wait for more packets
+        byte[] nal = nal(AVC_SLICE, 0, 3000);
+        sender.send(annexB(nal), 0, FRAME_FLAGS);
+
+        receiver.setLossPolicy(seq -> seq == 1);
+        receiver.receiveUntilComplete(3);
+
+        assertEquals(1, receiver.fecRecoveredCount);
+        assertEquals(0, receiver.nackCount);
+        assertArrayEquals(nal, receiver.depacketize(0, 3));
+    }
+
+    @Test
+    public void testUnrepairableNonKeyFrameLossDoesNotBlockLaterFrames() throws IOException {
+        byte[][] nals = {nal(AVC_SLICE, 0), nal(AVC_SLICE, 1), nal(AVC_SLICE, 2, 3000)};
+        sender.send(annexB(nals[0]), 0, FRAME_FLAGS);
+        sender.send(annexB(nals[1]), 16_666, FRAME_FLAGS);
+        sender.send(annexB(nals[2]), 33_333, FRAME_FLAGS);
+
+        // 2 losses in the first frame cannot be repaired, 1 loss in the second and in the last (partial) group can
+        receiver.setLossPolicy(seq -> seq == 1 || seq == 2 || seq == 5 || seq == 9);
+        receiver.receiveUntil(() -> receiver.isComplete(PACKETS_PER_FRAME, PACKETS_PER_FRAME + 3));
+
+        assertEquals(2, receiver.fecRecoveredCount);
+        // requested, but never retransmitted
+        assertEquals(1, receiver.nackCount);
+        assertEquals(0, receiver.retransmittedCount);
+        assertFalse(receiver.isComplete(0, PACKETS_PER_FRAME));
+        assertArrayEquals(nals[1], receiver.depacketize(PACKETS_PER_FRAME, PACKETS_PER_FRAME));
+        assertArrayEquals(nals[2], receiver.depacketize(2 * PACKETS_PER_FRAME, 3));
+    }
+
+    @Test
+    public void testNackRetransmitsKeyFramePackets() throws IOException {
+        byte[][] nals = {nal(AVC_IDR, 0), nal(AVC_IDR, 1)};
+        sender.send(annexB(nals[0]), 0, KEY_FRAME_FLAGS);
+        sender.send(annexB(nals[1]), 16_666, KEY_FRAME_FLAGS);
+
+        // 2 losses in the same group cannot be repaired by the parity packet
+        receiver.setLossPolicy(seq -> seq == 1 || seq == 2);
+        receiver.receiveUntilComplete(2 * PACKETS_PER_FRAME);
+
+        assertEquals(2, receiver.droppedCount);
+        assertEquals(1, receiver.nackCount);
+        assertEquals(2, receiver.retransmittedCount);
+        assertArrayEquals(nals[0], receiver.depacketize(0, PACKETS_PER_FRAME));
+        assertArrayEquals(nals[1], receiver.depacketize(PACKETS_PER_FRAME, PACKETS_PER_FRAME));
+    }
+
+    @Test
+    public void testNackIgnoredForNonKeyFrame() throws IOException {
+        sender.send(annexB(nal(AVC_SLICE, 0)), 0, FRAME_FLAGS);
+        sender.send(annexB(nal(AVC_SLICE, 1)), 16_666, FRAME_FLAGS);
+
+        receiver.setLossPolicy(seq -> seq == 1 || seq == 2);
+        receiver.setReceiveTimeout(200);
+        try {
+            receiver.receiveUntilComplete(2 * PACKETS_PER_FRAME);
+            fail("The non-key frame packets must not be retransmitted");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+        assertEquals(1, receiver.nackCount);
+        assertEquals(0, receiver.retransmittedCount);
+    }
+
+    @Test
+    public void testClientReceiverRestart() throws Exception {
+        int port = channel.socket().getLocalPort();
+        // the client restarts its receiver: the packets are rejected with ICMP port unreachable
+        channel.close();
+        int frameCount = 8;
+        for (int i = 0; i < frameCount; ++i) {
+            sender.send(annexB(nal(AVC_SLICE, i)), i * 16_666L, FRAME_FLAGS);
+            // let the ICMP errors reach the socket
+            Thread.sleep(5);
+        }
+
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        channel.socket().setSoTimeout(RECEIVE_TIMEOUT);
+        receiver = new Receiver(channel);
+
+        // the stream goes on, and the NACKs are still handled
+        int firstSeq = frameCount * PACKETS_PER_FRAME;
+        byte[] nal = nal(AVC_IDR, frameCount);
+        sender.send(annexB(nal), frameCount * 16_666L, KEY_FRAME_FLAGS);
+        receiver.setLossPolicy(seq -> seq == firstSeq + 1 || seq == firstSeq + 2);
+        receiver.receiveUntil(() -> receiver.isComplete(firstSeq, PACKETS_PER_FRAME));
+
+        assertEquals(1, receiver.nackCount);
+        assertEquals(2, receiver.retransmittedCount);
+        assertArrayEquals(nal, receiver.depacketize(firstSeq, PACKETS_PER_FRAME));
+    }
+
+    /**
+     * Check the RTP frame latency at 5% packet loss against a model of TCP, not against a measured TCP connection.
+     * <p>
+     * The RTP latency is measured over the loopback (FEC and NACK round trips included). Loss cannot be injected into a
+     * loopback TCP connection without root privileges, so TCP is only modeled: a frame which lost a segment is delayed
+     * by at least the minimum retransmission timeout (200 ms on Linux). With more than 1% of the frames hit, the TCP p99
+     * is at least that timeout, so the check is that the RTP p99 stays below it.
+     * <p>
+     * All the frames are key frames, so that every loss is eventually repaired; the loss of non-key frames is covered by
+     * {@link #testUnrepairableNonKeyFrameLossDoesNotBlockLaterFrames()}.
+     */
+    @Test
+    public void testP99LatencyUnderLossIsBelowTcpRetransmissionTimeout() throws Exception {
+        final int frameCount = 300;
+        final long frameIntervalNs = 2_000_000;
+        final long tcpMinRetransmissionTimeoutNs = 200_000_000;
+        final long[] sendTimes = new long[frameCount];
+        final byte[][] nals = new byte[frameCount][];
+        for (int i = 0; i < frameCount; ++i) {
+            nals[i] = nal(AVC_IDR, i);
+        }
+
+        Random random = new Random(42);
+        Set<Integer> lossPattern = new HashSet<>();
+        for (int seq = 0; seq < frameCount * PACKETS_PER_FRAME; ++seq) {
+            if (random.nextInt(100) < 5) {
+                lossPattern.add(seq);
+            }
+        }
+        receiver.setLossPolicy(lossPattern::contains);
+
+        Thread thread = new Thread(() -> {
+            try {
+                for (int i = 0; i < frameCount; ++i) {
+                    sendTimes[i] = System.nanoTime();
+                    sender.send(annexB(nals[i]), i * 16_666L, KEY_FRAME_FLAGS);
+                    long deadline = sendTimes[i] + frameIntervalNs;
+                    while (System.nanoTime() < deadline) {
+                        Thread.yield();
+                    }
+                }
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        thread.start();
+        receiver.receiveUntilComplete(frameCount * PACKETS_PER_FRAME);
+        thread.join();
+
+        long[] rtpLatencies = new long[frameCount];
+        int framesWithLoss = 0;
+        for (int i = 0; i < frameCount; ++i) {
+            assertArrayEquals(nals[i], receiver.depacketize(i * PACKETS_PER_FRAME, PACKETS_PER_FRAME));
+            rtpLatencies[i] = receiver.getCompletionTime(i * PACKETS_PER_FRAME, PACKETS_PER_FRAME) - sendTimes[i];
+
+            boolean lost = false;
+            for (int seq = i * PACKETS_PER_FRAME; seq < (i + 1) * PACKETS_PER_FRAME; ++seq) {
+                lost |= lossPattern.contains(seq);
+            }
+            if (lost) {
+                ++framesWithLoss;
+            }
+        }
+        // the modeled TCP p99 is at least the retransmission timeout
+        assertTrue(framesWithLoss > frameCount / 100);
+        assertEquals(lossPattern.size(), receiver.fecRecoveredCount + receiver.retransmittedCount);
+
+        long rtpP99 = percentile(rtpLatencies, 99);
+        assertTrue("RTP p99 " + rtpP99 / 1000 + " µs", rtpP99 < tcpMinRetransmissionTimeoutNs);
+    }
+
+    private static long percentile(long[] values, int percentile) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[index];
+    }
+
+    private static byte[] nal(int header, int seed) {
+        return nal(header, seed, NAL_SIZE);
+    }
+
+    private static byte[] nal(int header, int seed, int size) {
+        byte[] nal = new byte[size];
+        Random random = new Random(seed);
+        random.nextBytes(nal);
+        nal[0] = (byte) header;
+        for (int i = 1; i < nal.length; ++i) {
+            // avoid start code emulation
+            if (nal[i] == 0) {
+                nal[i] = 1;
+            }
+        }
+        return nal;
+    }
+
+    private static ByteBuffer annexB(byte[] nal) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + nal.length);
+        buffer.put(new byte[] {0, 0, 0, 1});
+        buffer.put(nal);
+        buffer.flip();
+        return buffer;
+    }
+
+    private interface LossPolicy {
+        /**
+         * @return {@code true} if the first transmission of this media packet must be dropped
+         */
+        boolean isLost(int seq);
+    }
+
+    /**
+     * Minimal RTP receiver: XOR FEC recovery, and generic NACK of the packets the parity cannot repair.
+     */
+    private static final class Receiver {
+        private final DatagramChannel channel;
+        private LossPolicy lossPolicy = seq -> false;
+        private final Map<Integer, byte[]> packets = new HashMap<>();
+        private final Map<Integer, Long> arrivalTimes = new HashMap<>();
+        private final Set<Integer> dropped = new HashSet<>();
+        private final Map<Integer, byte[]> fecPackets = new HashMap<>(); // by base sequence number, groups not repaired yet
+        private SocketAddress senderAddress;
+
+        private int droppedCount;
+        private int fecRecoveredCount;
+        private int retransmittedCount;
+        private int nackCount;
+        private int fecPacketCount;
+
+        Receiver(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        void setLossPolicy(LossPolicy lossPolicy) {
+            this.lossPolicy = lossPolicy;
+        }
+
+        void setReceiveTimeout(int timeout) throws IOException {
+            channel.socket().setSoTimeout(timeout);
+        }
+
+        void receiveUntilComplete(int packetCount) throws IOException {
+            receiveUntil(() -> isComplete(0, packetCount));
+        }
+
+        void receiveUntil(BooleanSupplier condition) throws IOException {
+            byte[] data = new byte[2048];
+            DatagramPacket datagram = new DatagramPacket(data, data.length);
+            while (!condition.getAsBoolean()) {
+                datagram.setLength(data.length);
+                channel.socket().receive(datagram);
+                senderAddress = datagram.getSocketAddress();
+                onPacket(Arrays.copyOf(data, datagram.getLength()));
+            }
+        }
+
+        private void onPacket(byte[] packet) throws IOException {
+            int payloadType = packet[1] & 0x7f;
+            int seq = readU16(packet, 2);
+            if (payloadType == RtpSender.PAYLOAD_TYPE_VIDEO) {
+                if (dropped.contains(seq)) {
+                    ++retransmittedCount;
+                } else if (lossPolicy.isLost(seq)) {
+                    dropped.add(seq);
+                    ++droppedCount;
+                    return;
+                }
+                store(seq, packet);
+                // the groups have variable sizes, they are only known from the parity packets
+                for (Map.Entry<Integer, byte[]> entry : fecPackets.entrySet()) {
+                    int base = entry.getKey();
+                    if (seq >= base && seq < base + (entry.getValue()[14] & 0xff)) {
+                        repair(base);
+                        break;
+                    }
+                }
+            } else if (payloadType == RtpSender.PAYLOAD_TYPE_FEC) {
+                ++fecPacketCount;
+                // base sequence number, right after the RTP header
+                int base = readU16(packet, 12);
+                int count = packet[14] & 0xff;
+                assertTrue(count > 0 && count <= FEC_GROUP_SIZE);
+                fecPackets.put(base, packet);
+                repair(base);
+            } else {
+                fail("Unexpected payload type: " + payloadType);
+            }
+        }
+
+        private void store(int seq, byte[] packet) {
+            if (!packets.containsKey(seq)) {
+                packets.put(seq, packet);
+                arrivalTimes.put(seq, System.nanoTime());
+            }
+        }
+
+        /**
+         * Recover a single missing packet from the parity packet, or request the retransmission of several.
+         */
+        private void repair(int base) throws IOException {
+            byte[] fec = fecPackets.get(base);
+            int count = fec[14] & 0xff;
+            List<Integer> missing = new ArrayList<>();
+            for (int seq = base; seq < base + count; ++seq) {
+                if (!packets.containsKey(seq)) {
+                    missing.add(seq);
+                }
+            }
+            if (missing.size() == 1) {
+                int length = readU16(fec, 16);
+                byte[] parity = Arrays.copyOfRange(fec, 18, fec.length);
+                for (int seq = base; seq < base + count; ++seq) {
+                    byte[] packet = packets.get(seq);
+                    if (packet != null) {
+                        length ^= packet.length;
+                        for (int i = 0; i < packet.length; ++i) {
+                            parity[i] ^= packet[i];
+                        }
+                    }
+                }
+                byte[] recovered = Arrays.copyOf(parity, length);
+                assertEquals((int) missing.get(0), readU16(recovered, 2));
+                store(missing.get(0), recovered);
+                ++fecRecoveredCount;
+                fecPackets.remove(base);
+            } else if (missing.size() > 1 && fecPackets.remove(base) != null) {
+                // only once per group, the retransmitted packets do not need the parity packet anymore
+                sendNack(missing);
+            }
+        }
+
+        private void sendNack(List<Integer> missing) throws IOException {
+            ByteArrayOutputStream fci = new ByteArrayOutputStream();
+            int i = 0;
+            while (i < missing.size()) {
+                int pid = missing.get(i++);
+                int blp = 0;
+                while (i < missing.size() && missing.get(i) - pid <= 16) {
+                    blp |= 1 << (missing.get(i++) - pid - 1);
+                }
+                fci.write(pid >> 8);
+                fci.write(pid);
+                fci.write(blp >> 8);
+                fci.write(blp);
+            }
+            ByteBuffer nack = ByteBuffer.allocate(12 + fci.size());
+            nack.put((byte) (2 << 6 | 1)); // version 2, FMT 1 (generic NACK)
+            nack.put((byte) 205); // transport layer feedback
+            nack.putShort((short) (nack.capacity() / 4 - 1));
+            nack.putInt(0); // sender SSRC
+            nack.putInt(0); // media SSRC
+            nack.put(fci.toByteArray());
+            nack.flip();
+            channel.send(nack, senderAddress);
+            ++nackCount;
+        }
+
+        boolean isComplete(int firstSeq, int count) {
+            for (int seq = firstSeq; seq < firstSeq + count; ++seq) {
+                if (!packets.containsKey(seq)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long getCompletionTime(int firstSeq, int count) {
+            long time = 0;
+            for (int seq = firstSeq; seq < firstSeq + count; ++seq) {
+                time = Math.max(time, arrivalTimes.get(seq));
+            }
+            return time;
+        }
+
+        /**
+         * Rebuild a NAL unit from its fragmentation units (RFC 6184 FU-A).
+         */
+        byte[] depacketize(int firstSeq, int count) {
+            ByteArrayOutputStream nal = new ByteArrayOutputStream();
+            for (int seq = firstSeq; seq < firstSeq + count; ++seq) {
+                byte[] packet = packets.get(seq);
+                int fuIndicator = packet[12] & 0xff;
+                int fuHeader = packet[13] & 0xff;
+                assertEquals(28, fuIndicator & 0x1f);
+                boolean start = (fuHeader & 0x80) != 0;
+                boolean end = (fuHeader & 0x40) != 0;
+                assertEquals(seq == firstSeq, start);
+                assertEquals(seq == firstSeq + count - 1, end);
+                // the marker bit is set on the last packet of the frame
+                assertEquals(end, (packet[1] & 0x80) != 0);
+                if (start) {
+                    nal.write((fuIndicator & 0xe0) | (fuHeader & 0x1f));
+                }
+                nal.write(packet, 14, packet.length - 14);
+            }
+            return nal.toByteArray();
+        }
+
+        private static int readU16(byte[] data, int offset) {
+            return (data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff);
+        }
+    }
+}
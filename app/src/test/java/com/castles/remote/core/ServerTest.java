@@ -0,0 +1,47 @@
+package com.castles.remote.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ServerTest {
+
+    private static Options createOptions(int bitRate, int minBitRate, int maxBitRate) {
+        Options options = new Options();
+        options.setBitRate(bitRate);
+        options.setMinBitRate(minBitRate);
+        options.setMaxBitRate(maxBitRate);
+        return options;
+    }
+
+    private static void assertRejected(Options options) {
+        try {
+            Server.checkBitRateRange(options);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBitRateRange() {
+        Server.checkBitRateRange(createOptions(8000000, 0, 0));
+        Server.checkBitRateRange(createOptions(8000000, 2000000, 16000000));
+        Server.checkBitRateRange(createOptions(8000000, 8000000, 8000000));
+        Server.checkBitRateRange(createOptions(8000000, 1000000, 0));
+        Server.checkBitRateRange(createOptions(8000000, 0, 20000000));
+    }
+
+    @Test
+    public void testMinBitRateAboveMaxBitRateIsRejected() {
+        assertRejected(createOptions(8000000, 16000000, 2000000));
+    }
+
+    @Test
+    public void testBitRateOutOfRangeIsRejected() {
+        assertRejected(createOptions(1000000, 2000000, 16000000));
+        assertRejected(createOptions(20000000, 2000000, 16000000));
+        assertRejected(createOptions(1000000, 2000000, 0));
+        assertRejected(createOptions(20000000, 0, 16000000));
+    }
+}
@@ -0,0 +1,48 @@
+package com.castles.remote.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SnapshotStreamerTest {
+
+    @Test
+    public void testPackRowsWithUnpaddedLastRow() {
+        int rowLength = 3 * 4; // 3 RGBA pixels
+        int rowStride = 16;
+        int height = 3;
+        // the last row is not padded: the buffer is shorter than rowStride * height
+        ByteBuffer pixels = ByteBuffer.allocate(rowStride * (height - 1) + rowLength);
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < rowStride && y * rowStride + x < pixels.capacity(); ++x) {
+                // the padding bytes are negative
+                pixels.put(y * rowStride + x, (byte) (x < rowLength ? y * rowLength + x : -1));
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(rowLength * height);
+        SnapshotStreamer.packRows(pixels, rowStride, rowLength, height, out);
+
+        assertEquals(0, out.position());
+        assertEquals(rowLength * height, out.remaining());
+        for (int i = 0; i < rowLength * height; ++i) {
+            assertEquals(i, out.get(i));
+        }
+        // the source is not consumed
+        assertEquals(0, pixels.position());
+    }
+
+    @Test
+    public void testPackRowsFromBufferPosition() {
+        ByteBuffer pixels = ByteBuffer.wrap(new byte[] {9, 9, 1, 2, 9, 3, 4});
+        pixels.position(2);
+
+        ByteBuffer out = ByteBuffer.allocate(4);
+        SnapshotStreamer.packRows(pixels, 3, 2, 2, out);
+
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, out.array());
+        assertEquals(2, pixels.position());
+    }
+}
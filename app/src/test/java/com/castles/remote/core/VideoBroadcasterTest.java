@@ -0,0 +1,79 @@
+package com.castles.remote.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VideoBroadcasterTest {
+
+    private static final long GRACE_PERIOD = 200; // ms
+
+    private static VideoBroadcaster createBroadcaster() {
+        VideoBroadcaster broadcaster = new ScreenEncoder(1000000).getBroadcaster();
+        broadcaster.setGracePeriod(GRACE_PERIOD);
+        return broadcaster;
+    }
+
+    private static Viewer createViewer(VideoBroadcaster broadcaster) {
+        return new Viewer(broadcaster, null, false, false);
+    }
+
+    private static int countGraceThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("SessionGrace".equals(thread.getName()) && thread.isAlive()) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testGracePeriodExpires() throws InterruptedException {
+        VideoBroadcaster broadcaster = createBroadcaster();
+        Viewer viewer = createViewer(broadcaster);
+        assertTrue(broadcaster.addViewer(viewer));
+        broadcaster.removeViewer(viewer);
+        assertTrue(broadcaster.isIdle());
+        assertFalse(broadcaster.isClosed());
+
+        Thread.sleep(GRACE_PERIOD * 3);
+        assertFalse(broadcaster.isIdle());
+        assertTrue(broadcaster.isClosed());
+        assertFalse(broadcaster.addViewer(createViewer(broadcaster)));
+    }
+
+    @Test
+    public void testResumeCancelsExpiration() throws InterruptedException {
+        VideoBroadcaster broadcaster = createBroadcaster();
+        Viewer viewer = createViewer(broadcaster);
+        assertTrue(broadcaster.addViewer(viewer));
+        broadcaster.removeViewer(viewer);
+
+        Thread.sleep(GRACE_PERIOD / 2);
+        Viewer resumed = createViewer(broadcaster);
+        assertTrue(broadcaster.addViewer(resumed));
+        assertFalse(broadcaster.isIdle());
+
+        Thread.sleep(GRACE_PERIOD * 2);
+        assertFalse(broadcaster.isClosed());
+        assertEquals(1, broadcaster.getViewerCount());
+        broadcaster.close();
+    }
+
+    @Test
+    public void testReconnectionsDoNotAccumulateThreads() throws InterruptedException {
+        int before = countGraceThreads();
+        VideoBroadcaster broadcaster = createBroadcaster();
+        for (int i = 0; i < 50; ++i) {
+            Viewer viewer = createViewer(broadcaster);
+            assertTrue(broadcaster.addViewer(viewer));
+            broadcaster.removeViewer(viewer);
+        }
+        assertTrue(countGraceThreads() - before <= 1);
+
+        // only the last grace period is still running
+        Thread.sleep(GRACE_PERIOD * 3);
+        assertTrue(broadcaster.isClosed());
+    }
+}